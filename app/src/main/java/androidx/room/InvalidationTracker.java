@@ -36,10 +36,12 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteStatement;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -62,6 +64,9 @@ import java.util.concurrent.locks.Lock;
 // memory table table, flipping the invalidated flag ON.
 // * When multi-instance invalidation is turned on, MultiInstanceInvalidationClient will be created.
 // It works as an Observer, and notifies other instances of table invalidation.
+// * For tables with a key column, the triggers also log the keys of the modified rows into a
+// second memory table. Observers limited to some keys of such a table are only notified when one
+// of their keys was modified. When no keys were logged, all observers are notified.
 public class InvalidationTracker {
 
     private static final String[] TRIGGERS = new String[]{"UPDATE", "DELETE", "INSERT"};
@@ -84,9 +89,27 @@ public class InvalidationTracker {
     static final String SELECT_UPDATED_TABLES_SQL = "SELECT * FROM " + UPDATE_TABLE_NAME
             + " WHERE " + INVALIDATED_COLUMN_NAME + " = 1;";
 
+    private static final String KEY_TABLE_NAME = "room_key_modification_log";
+
+    private static final String KEY_VALUE_COLUMN_NAME = "key_value";
+
+    private static final String CREATE_KEY_TABLE_SQL = "CREATE TEMP TABLE " + KEY_TABLE_NAME
+            + "(" + TABLE_ID_COLUMN_NAME + " INTEGER NOT NULL, "
+            + KEY_VALUE_COLUMN_NAME + " INTEGER, "
+            + "PRIMARY KEY(" + TABLE_ID_COLUMN_NAME + ", " + KEY_VALUE_COLUMN_NAME + "))";
+
+    private static final String SELECT_UPDATED_KEYS_SQL = "SELECT " + TABLE_ID_COLUMN_NAME
+            + ", " + KEY_VALUE_COLUMN_NAME + " FROM " + KEY_TABLE_NAME;
+
+    private static final String RESET_UPDATED_KEYS_SQL = "DELETE FROM " + KEY_TABLE_NAME;
+
+    // Observer keys of the LiveData created on the current thread
+    private static final ThreadLocal<Map<String, long[]>> sLiveDataKeys = new ThreadLocal<>();
+
     @NonNull
     final HashMap<String, Integer> mTableIdLookup;
     final String[] mTableNames;
+    final String[] mKeyColumns;
 
     @NonNull
     private Map<String, Set<String>> mViewTables;
@@ -145,6 +168,7 @@ public class InvalidationTracker {
         mInvalidationLiveDataContainer = new InvalidationLiveDataContainer(mDatabase);
         final int size = tableNames.length;
         mTableNames = new String[size];
+        mKeyColumns = new String[size];
         for (int id = 0; id < size; id++) {
             final String tableName = tableNames[id].toLowerCase(Locale.US);
             mTableIdLookup.put(tableName, id);
@@ -166,6 +190,57 @@ public class InvalidationTracker {
         }
     }
 
+    /**
+     * Sets the column of which the triggers log the values of modified rows.
+     * <p>
+     * Observers can limit their invalidation to some values of this column with
+     * {@link Observer#setKeys(String, long...)}. This should be called before the database is
+     * opened, tables tracked before have their keys logged after their triggers are recreated.
+     *
+     * @param table  The name of the table.
+     * @param column The name of an integer column of the table.
+     */
+    public void setKeyColumn(@NonNull String table, @NonNull String column) {
+        Integer tableId = mTableIdLookup.get(table.toLowerCase(Locale.US));
+        if (tableId == null) {
+            throw new IllegalArgumentException("There is no table with name " + table);
+        }
+        mKeyColumns[tableId] = column;
+    }
+
+    /**
+     * Limits the invalidation of the LiveData created by the given factory on this thread to
+     * the given keys of keyed tables.
+     *
+     * @param keys    Keys by table name.
+     * @param factory Creates the LiveData, usually by calling a DAO method.
+     * @param <T>     The type of the LiveData
+     * @return The created LiveData.
+     */
+    public static <T> T scoped(@NonNull Map<String, long[]> keys, @NonNull Factory<T> factory) {
+        Map<String, long[]> prev = sLiveDataKeys.get();
+        sLiveDataKeys.set(keys);
+        try {
+            return factory.create();
+        } finally {
+            sLiveDataKeys.set(prev);
+        }
+    }
+
+    /**
+     * Limits the observer to the keys given to {@link #scoped(Map, Factory)} on this thread, if any.
+     *
+     * @param observer The observer to limit.
+     */
+    public static void applyScope(@NonNull Observer observer) {
+        Map<String, long[]> keys = sLiveDataKeys.get();
+        if (keys != null) {
+            for (Map.Entry<String, long[]> entry : keys.entrySet()) {
+                observer.setKeys(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
     /**
      * Sets the auto closer for this invalidation tracker so that the invalidation tracker can
      * ensure that the database is not closed if there are pending invalidations that haven't yet
@@ -200,6 +275,7 @@ public class InvalidationTracker {
             database.execSQL("PRAGMA temp_store = MEMORY;");
             database.execSQL("PRAGMA recursive_triggers='ON';");
             database.execSQL(CREATE_TRACKING_TABLE_SQL);
+            database.execSQL(CREATE_KEY_TABLE_SQL);
             syncTriggers(database);
             mCleanupStatement = database.compileStatement(RESET_UPDATED_TABLES_SQL);
             mInitialized = true;
@@ -250,6 +326,7 @@ public class InvalidationTracker {
         writableDb.execSQL(
                 "INSERT OR IGNORE INTO " + UPDATE_TABLE_NAME + " VALUES(" + tableId + ", 0)");
         final String tableName = mTableNames[tableId];
+        final String keyColumn = mKeyColumns[tableId];
         StringBuilder stringBuilder = new StringBuilder();
         for (String trigger : TRIGGERS) {
             stringBuilder.setLength(0);
@@ -264,11 +341,30 @@ public class InvalidationTracker {
                     .append(" SET ").append(INVALIDATED_COLUMN_NAME).append(" = 1")
                     .append(" WHERE ").append(TABLE_ID_COLUMN_NAME).append(" = ").append(tableId)
                     .append(" AND ").append(INVALIDATED_COLUMN_NAME).append(" = 0")
-                    .append("; END");
+                    .append(";");
+            if (keyColumn != null) {
+                // Updates can move a row from one key to another
+                if (!"INSERT".equals(trigger)) {
+                    appendKeyInsert(stringBuilder, tableId, "OLD", keyColumn);
+                }
+                if (!"DELETE".equals(trigger)) {
+                    appendKeyInsert(stringBuilder, tableId, "NEW", keyColumn);
+                }
+            }
+            stringBuilder.append(" END");
             writableDb.execSQL(stringBuilder.toString());
         }
     }
 
+    private static void appendKeyInsert(StringBuilder builder, int tableId, String row,
+            String keyColumn) {
+        builder.append(" INSERT OR IGNORE INTO ")
+                .append(KEY_TABLE_NAME)
+                .append(" VALUES(").append(tableId)
+                .append(", ").append(row).append(".`").append(keyColumn).append("`")
+                .append(");");
+    }
+
     /**
      * Adds the given observer to the observers list and it will be notified if any table it
      * observes changes.
@@ -300,7 +396,15 @@ public class InvalidationTracker {
             }
             tableIds[i] = tableId;
         }
-        ObserverWrapper wrapper = new ObserverWrapper(observer, tableIds, tableNames);
+        long[][] keys = new long[size][];
+        if (observer.mKeys != null) {
+            for (int i = 0; i < size; i++) {
+                if (mKeyColumns[tableIds[i]] != null) {
+                    keys[i] = observer.mKeys.get(tableNames[i].toLowerCase(Locale.US));
+                }
+            }
+        }
+        ObserverWrapper wrapper = new ObserverWrapper(observer, tableIds, tableNames, keys);
         ObserverWrapper currentObserver;
         synchronized (mObserverMap) {
             currentObserver = mObserverMap.putIfAbsent(observer, wrapper);
@@ -406,6 +510,7 @@ public class InvalidationTracker {
         public void run() {
             final Lock closeLock = mDatabase.getCloseLock();
             Set<Integer> invalidatedTableIds = null;
+            Map<Integer, Set<Long>> invalidatedKeys = null;
             closeLock.lock();
             try {
 
@@ -431,6 +536,9 @@ public class InvalidationTracker {
                 db.beginTransactionNonExclusive();
                 try {
                     invalidatedTableIds = checkUpdatedTable();
+                    if (!invalidatedTableIds.isEmpty()) {
+                        invalidatedKeys = checkUpdatedKeys();
+                    }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
@@ -449,7 +557,8 @@ public class InvalidationTracker {
             if (invalidatedTableIds != null && !invalidatedTableIds.isEmpty()) {
                 synchronized (mObserverMap) {
                     for (Map.Entry<Observer, ObserverWrapper> entry : mObserverMap) {
-                        entry.getValue().notifyByTableInvalidStatus(invalidatedTableIds);
+                        entry.getValue().notifyByTableInvalidStatus(invalidatedTableIds,
+                                invalidatedKeys);
                     }
                 }
             }
@@ -474,6 +583,39 @@ public class InvalidationTracker {
             }
             return invalidatedTableIds;
         }
+
+        private Map<Integer, Set<Long>> checkUpdatedKeys() {
+            HashMap<Integer, Set<Long>> invalidatedKeys = new HashMap<>();
+            List<Integer> unknown = new ArrayList<>();
+            Cursor cursor = mDatabase.query(new SimpleSQLiteQuery(SELECT_UPDATED_KEYS_SQL));
+            //noinspection TryFinallyCanBeTryWithResources
+            try {
+                while (cursor.moveToNext()) {
+                    final int tableId = cursor.getInt(0);
+                    if (cursor.isNull(1)) {
+                        unknown.add(tableId);
+                        continue;
+                    }
+                    Set<Long> keys = invalidatedKeys.get(tableId);
+                    if (keys == null) {
+                        keys = new HashSet<>();
+                        invalidatedKeys.put(tableId, keys);
+                    }
+                    keys.add(cursor.getLong(1));
+                }
+            } catch (Throwable ex) {
+                eu.faircode.email.Log.w(ex);
+                // Notify all observers
+                invalidatedKeys.clear();
+            } finally {
+                cursor.close();
+            }
+            for (Integer tableId : unknown) {
+                invalidatedKeys.remove(tableId);
+            }
+            mDatabase.getOpenHelper().getWritableDatabase().execSQL(RESET_UPDATED_KEYS_SQL);
+            return invalidatedKeys;
+        }
     };
 
     /**
@@ -648,13 +790,15 @@ public class InvalidationTracker {
     static class ObserverWrapper {
         final int[] mTableIds;
         private final String[] mTableNames;
+        private final long[][] mKeys;
         final Observer mObserver;
         private final Set<String> mSingleTableSet;
 
-        ObserverWrapper(Observer observer, int[] tableIds, String[] tableNames) {
+        ObserverWrapper(Observer observer, int[] tableIds, String[] tableNames, long[][] keys) {
             mObserver = observer;
             mTableIds = tableIds;
             mTableNames = tableNames;
+            mKeys = keys;
             if (tableIds.length == 1) {
                 HashSet<String> set = new HashSet<>();
                 set.add(mTableNames[0]);
@@ -669,13 +813,17 @@ public class InvalidationTracker {
          * based on the given invalid status set.
          *
          * @param invalidatedTablesIds The table ids of the tables that are invalidated.
+         * @param invalidatedKeys      The modified keys by table id, null or missing if unknown.
          */
-        void notifyByTableInvalidStatus(Set<Integer> invalidatedTablesIds) {
+        void notifyByTableInvalidStatus(Set<Integer> invalidatedTablesIds,
+                Map<Integer, Set<Long>> invalidatedKeys) {
             Set<String> invalidatedTables = null;
             final int size = mTableIds.length;
             for (int index = 0; index < size; index++) {
                 final int tableId = mTableIds[index];
-                if (invalidatedTablesIds.contains(tableId)) {
+                if (invalidatedTablesIds.contains(tableId)
+                        && isInScope(mKeys[index],
+                        invalidatedKeys == null ? null : invalidatedKeys.get(tableId))) {
                     if (size == 1) {
                         // Optimization for a single-table observer
                         invalidatedTables = mSingleTableSet;
@@ -692,6 +840,18 @@ public class InvalidationTracker {
             }
         }
 
+        private static boolean isInScope(long[] keys, Set<Long> invalidatedKeys) {
+            if (keys == null || invalidatedKeys == null) {
+                return true;
+            }
+            for (long key : keys) {
+                if (invalidatedKeys.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         /**
          * Notifies the underlying {@link #mObserver} if it observes any of the specified
          * {@code tables}.
@@ -733,6 +893,7 @@ public class InvalidationTracker {
      */
     public abstract static class Observer {
         final String[] mTables;
+        Map<String, long[]> mKeys;
 
         /**
          * Observes the given list of tables and views.
@@ -765,6 +926,21 @@ public class InvalidationTracker {
          */
         public abstract void onInvalidated(@NonNull Set<String> tables);
 
+        /**
+         * Limits the invalidation by a keyed table to modifications of rows with the given keys.
+         * <p>
+         * This should be called before the observer is added.
+         *
+         * @param table The name of a table with a key column.
+         * @param keys  The values of the key column to observe.
+         */
+        public void setKeys(@NonNull String table, long... keys) {
+            if (mKeys == null) {
+                mKeys = new HashMap<>();
+            }
+            mKeys.put(table.toLowerCase(Locale.US), keys);
+        }
+
         boolean isRemote() {
             return false;
         }
@@ -874,6 +1050,15 @@ public class InvalidationTracker {
         }
     }
 
+    /**
+     * Creates a LiveData within {@link #scoped(Map, Factory)}.
+     *
+     * @param <T> The type of the LiveData
+     */
+    public interface Factory<T> {
+        T create();
+    }
+
     /**
      * An Observer wrapper that keeps a weak reference to the given object.
      * <p>
@@ -885,6 +1070,7 @@ public class InvalidationTracker {
 
         WeakObserver(InvalidationTracker tracker, Observer delegate) {
             super(delegate.mTables);
+            mKeys = delegate.mKeys;
             mTracker = tracker;
             mDelegateRef = new WeakReference<>(delegate);
         }
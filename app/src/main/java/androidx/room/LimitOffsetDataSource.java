@@ -103,6 +103,7 @@ public abstract class LimitOffsetDataSource<T> extends androidx.paging.Positiona
                 invalidate();
             }
         };
+        InvalidationTracker.applyScope(mObserver);
         if (registerObserverImmediately) {
             registerObserverIfNecessary();
         }
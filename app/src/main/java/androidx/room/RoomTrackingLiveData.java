@@ -144,6 +144,7 @@ class RoomTrackingLiveData<T> extends LiveData<T> {
                 ArchTaskExecutor.getInstance().executeOnMainThread(mInvalidationRunnable);
             }
         };
+        InvalidationTracker.applyScope(mObserver);
     }
 
     @Override
@@ -379,7 +379,7 @@ public class Argument {
     private OutputStream startLiteral(Protocol protocol, int size) 
 			throws IOException, ProtocolException {
 	DataOutputStream os = (DataOutputStream)protocol.getOutputStream();
-	boolean nonSync = protocol.supportsNonSyncLiterals();
+	boolean nonSync = protocol.supportsNonSyncLiterals(size);
 
 	os.write('{');
 	os.writeBytes(Integer.toString(size));
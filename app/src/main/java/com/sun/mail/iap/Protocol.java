@@ -281,6 +281,19 @@ public class Protocol {
 	return false;
     }
 
+    /**
+     * Returns whether this Protocol supports a non-synchronizing literal
+     * of the given size.
+     * Default is to defer to supportsNonSyncLiterals().
+     *
+     * @param	size	the literal size in bytes
+     * @return	true if the literal can be sent without waiting
+     *		for a continuation
+     */
+    protected boolean supportsNonSyncLiterals(int size) {
+	return supportsNonSyncLiterals();
+    }
+
     public Response readResponse() 
 		throws IOException, ProtocolException {
 	return new Response(this);
@@ -641,6 +654,24 @@ public class Protocol {
 	}
     }
 
+    /**
+     * Get the number of bytes sent on this connection.
+     *
+     * @return	the number of bytes sent
+     */
+    public long getSent() {
+	return (traceOutput == null ? 0 : traceOutput.getSent());
+    }
+
+    /**
+     * Get the number of bytes received on this connection.
+     *
+     * @return	the number of bytes received
+     */
+    public long getReceived() {
+	return (traceInput == null ? 0 : traceInput.getReceived());
+    }
+
     /**
      * Get the name of the local host.
      * The property &lt;prefix&gt;.localhost overrides
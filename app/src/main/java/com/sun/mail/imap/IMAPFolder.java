@@ -1972,6 +1972,85 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	return uids;
     }
 
+    /**
+     * Append the given messages into this folder with a single
+     * APPEND command.
+     * Return array of AppendUID objects containing
+     * UIDs of these messages in the destination folder.
+     * Each element of the returned array corresponds to
+     * an element of the <code>msgs</code> array.  A null
+     * element means the server didn't return UID information
+     * for the appended message.  <p>
+     *
+     * Depends on the MULTIAPPEND extension -
+     * <A HREF="http://www.ietf.org/rfc/rfc3502.txt">RFC 3502</A>.
+     * The messages are appended one at a time if the server
+     * doesn't support this extension.
+     *
+     * @param	msgs	the messages to append
+     * @return		array of AppendUID objects
+     * @exception	MessagingException for failures
+     */
+    public synchronized AppendUID[] multiAppendUIDMessages(Message[] msgs)
+				throws MessagingException {
+	checkExists(); // verify that self exists
+
+	boolean multi = (Boolean)doCommand(new ProtocolCommand() {
+	    @Override
+	    public Object doCommand(IMAPProtocol p) {
+		return p.hasCapability("MULTIAPPEND");
+	    }
+	});
+	if (!multi || msgs.length < 2)
+	    return appendUIDMessages(msgs);
+
+	int maxsize = ((IMAPStore)store).getAppendBufferSize();
+
+	List<Integer> index = new ArrayList<>();
+	List<Flags> flags = new ArrayList<>();
+	List<Date> dates = new ArrayList<>();
+	List<Literal> literals = new ArrayList<>();
+	for (int i = 0; i < msgs.length; i++) {
+	    Message m = msgs[i];
+	    MessageLiteral mos;
+	    try {
+		// if we know the message is too big, don't buffer any of it
+		mos = new MessageLiteral(m,
+				m.getSize() > maxsize ? 0 : maxsize);
+	    } catch (IOException ex) {
+		throw new MessagingException(
+				"IOException while appending messages", ex);
+	    } catch (MessageRemovedException mrex) {
+		continue; // just skip this expunged message
+	    }
+
+	    Date d = m.getReceivedDate(); // retain dates
+	    if (d == null)
+		d = m.getSentDate();
+
+	    index.add(i);
+	    flags.add(m.getFlags());
+	    dates.add(d);
+	    literals.add(mos);
+	}
+
+	final Flags[] ff = flags.toArray(new Flags[0]);
+	final Date[] dd = dates.toArray(new Date[0]);
+	final Literal[] ll = literals.toArray(new Literal[0]);
+	AppendUID[] auids = (AppendUID[])doCommand(new ProtocolCommand() {
+	    @Override
+	    public Object doCommand(IMAPProtocol p)
+		    throws ProtocolException {
+		return p.multiappenduid(fullName, ff, dd, ll);
+	    }
+	});
+
+	AppendUID[] uids = new AppendUID[msgs.length];
+	for (int i = 0; i < auids.length; i++)
+	    uids[index.get(i)] = auids[i];
+	return uids;
+    }
+
     /**
      * Append the given messages into this folder.
      * Return array of Message objects representing
@@ -2215,6 +2294,8 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 		    cuid = p.moveuid(ms, folder.getFullName());
 		else
 		    cuid = p.copyuid(ms, folder.getFullName());
+		if (cuid == null) // no COPYUID response code
+		    return new AppendUID[msgs.length];
 
 		/*
 		 * Correlate source UIDs with destination UIDs.
@@ -2769,7 +2850,19 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
      * Get the UID for the specified message.
      */
     @Override
-    public synchronized long getUID(Message message) 
+    public long getUID(Message message)
+			throws MessagingException {
+	// Don't wait for a fetch in progress when the UID is known already
+	if (message instanceof IMAPMessage &&
+		message.getFolder() == this && opened) {
+	    long uid = ((IMAPMessage)message).getUID();
+	    if (uid != -1)
+		return uid;
+	}
+	return _getUID(message);
+    }
+
+    private synchronized long _getUID(Message message)
 			throws MessagingException {
 	if (message.getFolder() != this)
 	    throw new NoSuchElementException(
@@ -243,6 +243,18 @@ public class IMAPMessage extends MimeMessage implements ReadableMime {
 	this.modseq = modseq;
     }
 
+    /**
+     * Set the flags of a FETCH response that was not handled by the folder,
+     * like a CONDSTORE/QRESYNC delta, to prevent fetching them again.
+     *
+     * @param	flags	the fetched flags
+     */
+    public void setFetchedFlags(Flags flags) {
+	synchronized (getMessageCacheLock()) {
+	    this.flags = flags;
+	}
+    }
+
     // expose to MessageCache
     @Override
     protected void setExpunged(boolean set) {
@@ -2122,6 +2122,67 @@ public class IMAPStore extends Store
 	    throw new IllegalStateException("Not connected");
     }
 
+    /**
+     * Request notifications about new, expunged and changed messages
+     * in the specified folders using the IMAP NOTIFY command (see
+     * <A HREF="http://www.ietf.org/rfc/rfc5465.txt">RFC 5465</A>).
+     * Notifications received on the store connection, typically while
+     * in {@link #idle idle}, are delivered to <code>FolderListener</code>s
+     * as <code>FolderEvent.CHANGED</code> events.
+     * Passing no folders disables the notifications.
+     *
+     * @param	folders	the full names of the folders to watch
+     * @exception MessagingException	if the server doesn't support the
+     *					NOTIFY extension
+     */
+    public synchronized void notifyStatus(String[] folders)
+				throws MessagingException {
+	checkConnected();
+
+	IMAPProtocol p = null;
+	try {
+	    p = getStoreProtocol("notify");
+	    p.notifyStatus(folders);
+	} catch (BadCommandException bex) {
+	    throw new MessagingException("NOTIFY not supported", bex);
+	} catch (ConnectionException cex) {
+	    throw new StoreClosedException(this, cex.getMessage());
+	} catch (ProtocolException pex) {
+	    throw new MessagingException(pex.getMessage(), pex);
+	} finally {
+	    releaseStoreProtocol(p);
+	}
+    }
+
+    /**
+     * Get the status of all folders with a single LIST command, using the
+     * IMAP LIST-STATUS extension (see
+     * <A HREF="http://www.ietf.org/rfc/rfc5819.txt">RFC 5819</A>).
+     *
+     * @param	items	the STATUS items to return
+     * @return		the status of each selectable folder
+     * @exception MessagingException	if the server doesn't support the
+     *					LIST-STATUS extension
+     */
+    public synchronized Status[] listStatus(String[] items)
+				throws MessagingException {
+	checkConnected();
+
+	IMAPProtocol p = null;
+	try {
+	    p = getStoreProtocol("listStatus");
+	    return p.listStatus("", "*", items);
+	} catch (BadCommandException bex) {
+	    throw new MessagingException("LIST-STATUS not supported", bex);
+	} catch (ConnectionException cex) {
+	    throw new StoreClosedException(this, cex.getMessage());
+	} catch (ProtocolException pex) {
+	    throw new MessagingException(pex.getMessage(), pex);
+	} finally {
+	    releaseStoreProtocol(p);
+	}
+    }
+
     /**
      * Response handler method.
      */
@@ -2130,6 +2191,14 @@ public class IMAPStore extends Store
 	// Any of these responses may have a response code.
 	if (r.isOK() || r.isNO() || r.isBAD() || r.isBYE())
 	    handleResponseCode(r);
+	// Unsolicited STATUS responses are the result of NOTIFY
+	if (r instanceof IMAPResponse && ((IMAPResponse)r).keyEquals("STATUS"))
+	    try {
+		Status status = new Status(r);
+		notifyFolderListeners(FolderEvent.CHANGED, getFolder(status.mbox));
+	    } catch (Throwable ex) {
+		eu.faircode.email.Log.e(ex);
+	    }
 	if (r.isBYE()) {
 	    logger.fine("IMAPStore connection dead");
 	    // Store's IMAP connection is dead, save the response so that
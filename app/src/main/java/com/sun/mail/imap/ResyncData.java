@@ -44,6 +44,12 @@ public class ResyncData {
      */
     public static final ResyncData CONDSTORE = new ResyncData(-1, -1);
 
+    /**
+     * Used to enable only the QRESYNC extension,
+     * without requesting changes on open.
+     */
+    public static final ResyncData QRESYNC = new ResyncData(-1, -1);
+
     /**
      * Used to report on changes since the specified modseq.
      * If the UIDVALIDITY of the folder has changed, no message
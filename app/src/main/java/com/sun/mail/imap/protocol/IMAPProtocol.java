@@ -377,6 +377,20 @@ public class IMAPProtocol extends Protocol {
 	return hasCapability("LITERAL+");
     }
 
+    /**
+     * Returns whether a non-synchronizing literal of the given size
+     * can be sent. LITERAL- allows this for literals up to 4096 bytes.
+     *
+     * @param	size	the literal size in bytes
+     * @return	true if non-synchronizing literals can be used
+     * @see "RFC 7888"
+     */
+    @Override
+    protected boolean supportsNonSyncLiterals(int size) {
+	return hasCapability("LITERAL+") ||
+		(hasCapability("LITERAL-") && size <= 4096);
+    }
+
     /**
      * Read a response from the server.
      *
@@ -1208,6 +1222,9 @@ public class IMAPProtocol extends Protocol {
 		if (!hasCapability("CONDSTORE"))
 		    throw new BadCommandException("CONDSTORE not supported");
 		args.writeArgument(new Argument().writeAtom("CONDSTORE"));
+	    } else if (rd == ResyncData.QRESYNC) {
+		if (!hasCapability("QRESYNC"))
+		    throw new BadCommandException("QRESYNC not supported");
 	    } else {
 		if (!hasCapability("QRESYNC")) 
 		    throw new BadCommandException("QRESYNC not supported");
@@ -1270,6 +1287,9 @@ public class IMAPProtocol extends Protocol {
 		if (!hasCapability("CONDSTORE"))
 		    throw new BadCommandException("CONDSTORE not supported");
 		args.writeArgument(new Argument().writeAtom("CONDSTORE"));
+	    } else if (rd == ResyncData.QRESYNC) {
+		if (!hasCapability("QRESYNC"))
+		    throw new BadCommandException("QRESYNC not supported");
 	    } else {
 		if (!hasCapability("QRESYNC")) 
 		    throw new BadCommandException("QRESYNC not supported");
@@ -1344,6 +1364,47 @@ public class IMAPProtocol extends Protocol {
 	    return enabled.contains(cap.toUpperCase(Locale.ENGLISH));
     }
 
+    /**
+     * NOTIFY Command.
+     *
+     * Request unsolicited STATUS responses for new, expunged
+     * and changed messages in the specified mailboxes.
+     * Notifications are disabled if no mailboxes are specified.
+     *
+     * @param	mboxes	the mailbox names
+     * @exception	ProtocolException	for protocol failures
+     * @see "RFC5465"
+     */
+    public void notifyStatus(String[] mboxes) throws ProtocolException {
+	if (!hasCapability("NOTIFY"))
+	    throw new BadCommandException("NOTIFY not supported");
+
+	Argument args = new Argument();
+	if (mboxes == null || mboxes.length == 0)
+	    args.writeAtom("NONE");
+	else {
+	    args.writeAtom("SET");
+
+	    // (mailboxes (mbox ...) (MessageNew MessageExpunge FlagChange))
+	    Argument mlist = new Argument();
+	    for (String mbox : mboxes)
+		writeMailboxName(mlist, mbox);
+
+	    Argument events = new Argument();
+	    events.writeAtom("MessageNew");
+	    events.writeAtom("MessageExpunge");
+	    events.writeAtom("FlagChange");
+
+	    Argument group = new Argument();
+	    group.writeAtom("mailboxes");
+	    group.writeArgument(mlist);
+	    group.writeArgument(events);
+	    args.writeArgument(group);
+	}
+
+	simpleCommand("NOTIFY", args);
+    }
+
     /**
      * UNSELECT Command.
      *
@@ -1498,6 +1559,60 @@ public class IMAPProtocol extends Protocol {
 	return doList("LIST", ref, pattern);
     }
 
+    /**
+     * LIST Command returning the status of the listed mailboxes.
+     *
+     * @param	ref	reference string
+     * @param	pattern	pattern to list
+     * @param	items	the STATUS items to return
+     * @return		STATUS results
+     * @exception	ProtocolException	for protocol failures
+     * @see "RFC5819"
+     */
+    public Status[] listStatus(String ref, String pattern, String[] items)
+			throws ProtocolException {
+	if (!hasCapability("LIST-STATUS"))
+	    throw new BadCommandException("LIST-STATUS not supported");
+
+	Argument args = new Argument();
+	writeMailboxName(args, ref);
+	writeMailboxName(args, pattern);
+
+	// RETURN (STATUS (items))
+	Argument itemArgs = new Argument();
+	for (int i = 0, len = items.length; i < len; i++)
+	    itemArgs.writeAtom(items[i]);
+	Argument retArgs = new Argument();
+	retArgs.writeAtom("STATUS");
+	retArgs.writeArgument(itemArgs);
+	args.writeAtom("RETURN");
+	args.writeArgument(retArgs);
+
+	Response[] r = command("LIST", args);
+
+	List<Status> v = new ArrayList<>();
+	Response response = r[r.length-1];
+
+	if (response.isOK()) { // command succesful 
+	    for (int i = 0, len = r.length; i < len; i++) {
+		if (!(r[i] instanceof IMAPResponse))
+		    continue;
+
+		IMAPResponse ir = (IMAPResponse)r[i];
+		if (ir.keyEquals("STATUS")) {
+		    v.add(new Status(ir));
+		    r[i] = null;
+		} else if (ir.keyEquals("LIST"))
+		    r[i] = null;
+	    }
+	}
+
+	// Dispatch remaining untagged responses
+	notifyResponseHandlers(r);
+	handleResult(response);
+	return v.toArray(new Status[0]);
+    }
+
     /**
      * LSUB Command.
      *
@@ -1631,6 +1746,73 @@ public class IMAPProtocol extends Protocol {
 	    return null;
     }
 
+    /**
+     * APPEND Command with multiple messages, return uids from the
+     * APPENDUID response code. Each element of the returned array
+     * corresponds to an element of the <code>data</code> array.
+     * A null element means the server didn't return UID information.
+     *
+     * @param	mbox	the mailbox
+     * @param	f	the Flags of each message
+     * @param	d	the date of each message
+     * @param	data	the data of each message
+     * @return		APPENDUID data
+     * @exception	ProtocolException	for protocol failures
+     * @see "RFC 3502"
+     * @see "RFC 4315, section 3"
+     */
+    public AppendUID[] multiappenduid(String mbox, Flags[] f, Date[] d,
+			Literal[] data) throws ProtocolException {
+	if (!hasCapability("MULTIAPPEND"))
+	    throw new BadCommandException("MULTIAPPEND not supported");
+
+	Argument args = new Argument();
+	writeMailboxName(args, mbox);
+
+	for (int i = 0; i < data.length; i++) {
+	    Flags flags = f[i];
+	    if (flags != null) {
+		// can't set the \Recent flag in APPEND
+		if (flags.contains(Flags.Flag.RECENT)) {
+		    flags = new Flags(flags);
+		    flags.remove(Flags.Flag.RECENT);
+		}
+		args.writeAtom(createFlagList(flags));
+	    }
+	    if (d[i] != null)
+		args.writeString(INTERNALDATE.format(d[i]));
+	    args.writeBytes(data[i]);
+	}
+
+	Response[] r = command("APPEND", args);
+
+	// dispatch untagged responses
+	notifyResponseHandlers(r);
+
+	// Handle result of this command
+	handleResult(r[r.length-1]);
+
+	AppendUID[] uids = new AppendUID[data.length];
+	Response rr = r[r.length-1];
+	if (!rr.isOK())
+	    return uids;
+	byte b;
+	while ((b = rr.readByte()) > 0 && b != (byte)'[')
+	    ;
+	if (b == 0)
+	    return uids;
+	if (!rr.readAtom().equalsIgnoreCase("APPENDUID"))
+	    return uids;
+
+	long uidvalidity = rr.readLong();
+	long[] appended = UIDSet.toArray(UIDSet.parseUIDSets(rr.readAtom()));
+	// UIDs are assigned in the order of the messages
+	if (appended != null && appended.length == data.length)
+	    for (int i = 0; i < appended.length; i++)
+		uids[i] = new AppendUID(uidvalidity, appended[i]);
+	return uids;
+    }
+
     /**
      * If the response contains an APPENDUID response code, extract
      * it and return an AppendUID object with the information.
@@ -2390,6 +2572,69 @@ public class IMAPProtocol extends Protocol {
 	handleResult(r[r.length-1]);
     }
 
+    /**
+     * Set the specified flags on the messages with the given UIDs.
+     * The new flags are known, so the server is asked not to
+     * send them back.
+     *
+     * @param	uidsets	the UIDs
+     * @param	flags	the flags
+     * @param	set	true to set, false to clear
+     * @exception	ProtocolException	for protocol failures
+     */
+    public void uidStoreFlags(UIDSet[] uidsets, Flags flags, boolean set)
+			throws ProtocolException {
+	Response[] r = command("UID STORE " + UIDSet.toString(uidsets) +
+			(set ? " +FLAGS.SILENT " : " -FLAGS.SILENT ") +
+			createFlagList(flags), null);
+
+	// Dispatch untagged responses
+	notifyResponseHandlers(r);
+	handleResult(r[r.length-1]);
+    }
+
+    /**
+     * UID MOVE command.
+     *
+     * @param	uidsets	the UIDs
+     * @param	mbox	the mailbox to move them to
+     * @exception	ProtocolException	for protocol failures
+     * @see "RFC 6851"
+     */
+    public void uidMove(UIDSet[] uidsets, String mbox)
+			throws ProtocolException {
+	if (!hasCapability("MOVE")) 
+	    throw new BadCommandException("MOVE not supported");
+	uidTransfer("UID MOVE", uidsets, mbox);
+    }
+
+    /**
+     * UID COPY command.
+     *
+     * @param	uidsets	the UIDs
+     * @param	mbox	the mailbox to copy them to
+     * @exception	ProtocolException	for protocol failures
+     */
+    public void uidCopy(UIDSet[] uidsets, String mbox)
+			throws ProtocolException {
+	uidTransfer("UID COPY", uidsets, mbox);
+    }
+
+    private void uidTransfer(String cmd, UIDSet[] uidsets, String mbox)
+			throws ProtocolException {
+	Argument args = new Argument();	
+	args.writeAtom(UIDSet.toString(uidsets));
+	writeMailboxName(args, mbox);
+
+	Response[] r = command(cmd, args);
+
+	// dispatch untagged responses
+	notifyResponseHandlers(r);
+
+	// Handle result of this command
+	handleResult(r[r.length-1]);
+    }
+
     /**
      * Creates an IMAP flag_list from the given Flags object.
      *
@@ -2581,6 +2826,118 @@ public class IMAPProtocol extends Protocol {
 	return matches;
     }
 
+    /**
+     * Issue the given search criterion on all messages in this folder
+     * and return the UIDs of the matching messages as sets of ranges.
+     * If the server supports ESEARCH, the server returns the ranges,
+     * instead of a list of all matching UIDs.
+     * All messages match if no search criterion is given.
+     *
+     * @param	term	SearchTerm, or null
+     * @return		the matching UIDs
+     * @exception	ProtocolException	for protocol failures
+     * @exception	SearchException	for search failures
+     * @see "RFC4731"
+     */
+    public UIDSet[] uidSearch(SearchTerm term)
+			throws ProtocolException, SearchException {
+	if (term == null || supportsUtf8() || SearchSequence.isAscii(term)) {
+	    try {
+		return issueUidSearch(term, null);
+	    } catch (IOException ioex) { /* will not happen */ }
+	}
+
+	// Cycle thru the list of charsets, see search() above
+	for (int i = 0; i < searchCharsets.length; i++) {
+	    if (searchCharsets[i] == null)
+		continue;
+
+	    try {
+		return issueUidSearch(term, searchCharsets[i]);
+	    } catch (CommandFailedException cfx) {
+		searchCharsets[i] = null;
+		continue;
+	    } catch (IOException ioex) {
+		continue;
+	    }
+	}
+
+	// No luck.
+	throw new SearchException("Search failed");
+    }
+
+    private UIDSet[] issueUidSearch(SearchTerm term, String charset)
+	     throws ProtocolException, SearchException, IOException {
+
+	Argument args;
+	if (term == null)
+	    args = new Argument();
+	else
+	    args = getSearchSequence().generateSequence(term,
+			  charset == null ? null :
+					    MimeUtility.javaCharset(charset)
+			);
+	args.writeAtom("ALL");
+
+	boolean esearch = hasCapability("ESEARCH");
+	String cmd = "UID SEARCH";
+	if (esearch)
+	    cmd += " RETURN (ALL)";
+	if (charset != null)
+	    cmd += " CHARSET " + charset;
+
+	Response[] r = command(cmd, args);
+
+	Response response = r[r.length-1];
+	UIDSet[] matches = null;
+
+	if (response.isOK()) { // command succesful
+	    List<UIDSet> sets = new ArrayList<>();
+	    List<Long> v = new ArrayList<>();
+	    for (int i = 0, len = r.length; i < len; i++) {
+		if (!(r[i] instanceof IMAPResponse))
+		    continue;
+
+		IMAPResponse ir = (IMAPResponse)r[i];
+		if (ir.keyEquals("ESEARCH")) {
+		    // * ESEARCH (TAG "A1") UID ALL 1:3,5
+		    if (ir.peekByte() == '(')
+			ir.readAtomStringList();
+		    String atom;
+		    while ((atom = ir.readAtom()) != null && atom.length() > 0) {
+			if (atom.equalsIgnoreCase("ALL")) {
+			    UIDSet[] all = UIDSet.parseUIDSets(ir.readAtom());
+			    if (all != null)
+				sets.addAll(Arrays.asList(all));
+			} else if (!atom.equalsIgnoreCase("UID"))
+			    ir.readAtom(); // skip value of other return data
+		    }
+		    r[i] = null;
+		} else if (ir.keyEquals("SEARCH")) {
+		    long uid;
+		    while ((uid = ir.readLong()) != -1)
+			v.add(uid);
+		    r[i] = null;
+		}
+	    }
+
+	    if (v.size() > 0) {
+		long[] uids = new long[v.size()];
+		for (int i = 0; i < uids.length; i++)
+		    uids[i] = v.get(i);
+		Arrays.sort(uids);
+		sets.addAll(Arrays.asList(UIDSet.createUIDSets(uids)));
+	    }
+
+	    matches = sets.toArray(new UIDSet[0]);
+	}
+
+	// dispatch remaining untagged responses
+	notifyResponseHandlers(r);
+	handleResult(response);
+	return matches;
+    }
+
     /**
      * Get the SearchSequence object.
      * The SearchSequence object instance is saved in the searchSequence
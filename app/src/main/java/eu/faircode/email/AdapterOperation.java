@@ -26,6 +26,7 @@ import android.os.Bundle;
 import android.text.SpannableString;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.StyleSpan;
+import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -99,13 +100,17 @@ public class AdapterOperation extends RecyclerView.Adapter<AdapterOperation.View
                     .append(operation.name).append(':')
                     .append(operation.getPriority(false)).append("/")
                     .append(operation.tries);
-            try {
-                JSONArray jarray = new JSONArray(operation.args);
-                if (jarray.length() > 0)
-                    sb.append(' ').append(operation.args);
-            } catch (JSONException ex) {
-                Log.e(ex);
-            }
+            Pair<Long, Long> progress = operation.getProgress();
+            if (progress != null)
+                sb.append(' ').append(progress.first).append('/').append(progress.second);
+            else
+                try {
+                    JSONArray jarray = new JSONArray(operation.args);
+                    if (jarray.length() > 0)
+                        sb.append(' ').append(operation.args);
+                } catch (JSONException ex) {
+                    Log.e(ex);
+                }
 
             String folderName =
                     (operation.accountName == null ? "" : operation.accountName + "/") + operation.folderName;
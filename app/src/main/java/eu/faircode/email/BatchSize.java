@@ -0,0 +1,122 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2024 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+// Additive increase, multiplicative decrease of batch sizes
+// Batches grow slowly while they are fast and memory is available
+// and are halved on slow batches, errors and memory pressure
+public class BatchSize {
+    private final SharedPreferences prefs;
+    private final String key;
+    private final int min;
+    private final int max;
+    private final int step;
+    private final long target;
+    private int size;
+    private long item = 0; // average bytes per item
+
+    private static final int MIN_FREE_MB = 50;
+    private static final int MAX_MEMORY_PART = 8; // of free memory per batch
+
+    private BatchSize(Context context, String key, int initial, int min, int max, int step, long target) {
+        this.prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        this.key = key;
+        this.min = min;
+        this.max = max;
+        this.step = step;
+        this.target = target;
+        this.size = Math.max(min, Math.min(max, prefs.getInt(key, initial)));
+    }
+
+    static BatchSize getSync(Context context, EntityAccount account) {
+        return new BatchSize(context, "batch_sync." + account.id,
+                Core.SYNC_BATCH_SIZE, 5, 100, 5, 2500L);
+    }
+
+    static BatchSize getDownload(Context context, EntityAccount account) {
+        return new BatchSize(context, "batch_download." + account.id,
+                Core.DOWNLOAD_BATCH_SIZE, 5, 100, 5, 10 * 1000L);
+    }
+
+    static BatchSize getChunk(Context context, EntityAccount account) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int initial = prefs.getInt("chunk_size", Core.DEFAULT_CHUNK_SIZE);
+        // https://datatracker.ietf.org/doc/html/rfc2683#section-3.2.1.5
+        if (initial < 200 &&
+                (account.isGmail() || account.isOutlook()))
+            initial = 200;
+        return new BatchSize(context, "batch_chunk." + account.id,
+                initial, 10, 1000, 10, 2500L);
+    }
+
+    static void clear(Context context, long account) {
+        // Including the download workers limit, see Core
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit()
+                .remove("batch_sync." + account)
+                .remove("batch_download." + account)
+                .remove("batch_chunk." + account)
+                .remove("download_workers." + account)
+                .apply();
+    }
+
+    synchronized int get() {
+        return size;
+    }
+
+    synchronized void success(int count, long ms, long bytes) {
+        if (count <= 0)
+            return;
+
+        if (bytes > 0)
+            item = (item == 0 ? bytes / count : (item + bytes / count) / 2);
+
+        int free = Log.getFreeMemMb();
+        int next;
+        if (free < MIN_FREE_MB || ms > 2 * target)
+            next = size / 2;
+        else if (ms < target && count >= size) {
+            next = size + step;
+            if (item > 0 && next * item > free * 1024L * 1024L / MAX_MEMORY_PART)
+                next = size;
+        } else
+            next = size;
+
+        set(next, "ms=" + ms + " bytes=" + bytes + " count=" + count + " free=" + free);
+    }
+
+    synchronized void failure(Throwable ex) {
+        set(size / 2, ex == null ? "failure" : ex.toString());
+    }
+
+    private void set(int next, String reason) {
+        next = Math.max(min, Math.min(max, next));
+        if (next == size)
+            return;
+        Log.i("Batch " + key + " size " + size + ">" + next + " " + reason);
+        size = next;
+        prefs.edit().putInt(key, size).apply();
+    }
+}
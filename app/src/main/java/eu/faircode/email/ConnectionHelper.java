@@ -1026,4 +1026,12 @@ public class ConnectionHelper {
         } else
             return new Socket();
     }
+
+    static boolean isProxied(String host, int port) {
+        if (BuildConfig.DEBUG) {
+            Proxy proxy = ProxySelector.getDefault().select(URI.create("socket://" + host + ":" + port)).get(0);
+            return (proxy.type() != Proxy.Type.DIRECT);
+        } else
+            return false;
+    }
 }
@@ -55,6 +55,7 @@ import com.sun.mail.imap.IMAPStore;
 import com.sun.mail.imap.protocol.FLAGS;
 import com.sun.mail.imap.protocol.FetchResponse;
 import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
 import com.sun.mail.imap.protocol.Status;
 import com.sun.mail.imap.protocol.UID;
 import com.sun.mail.imap.protocol.UIDSet;
@@ -79,16 +80,23 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -120,14 +128,22 @@ import javax.mail.search.HeaderTerm;
 import javax.mail.search.MessageIDTerm;
 import javax.mail.search.OrTerm;
 import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.SearchException;
 import javax.mail.search.SearchTerm;
 import javax.mail.search.SentDateTerm;
+import javax.mail.util.SharedFileInputStream;
 
 class Core {
     static final int DEFAULT_CHUNK_SIZE = 50;
 
-    private static final int SYNC_BATCH_SIZE = 20;
-    private static final int DOWNLOAD_BATCH_SIZE = 20;
+    static final int SYNC_BATCH_SIZE = 20; // initial, see BatchSize
+    private static final int MAX_SIMILAR_QUERY = 450; // SQLite max variables
+    private static final int MAX_STORE_RANGES = 500; // UID ranges per command
+    private static final long MAX_APPEND_BYTES = 10 * 1024 * 1024L; // per command
+    private static final int SYNC_CHECK_BATCH_SIZE = 500; // < SQLite max variables
+    static final int DOWNLOAD_BATCH_SIZE = 20; // initial, see BatchSize
+    private static final int MAX_DOWNLOAD_WORKERS = 2; // extra connections
+    private static final int DOWNLOAD_WORKER_MIN_FREE = 100; // MB
     private static final long YIELD_DURATION = 200L; // milliseconds
     private static final long JOIN_WAIT_ALIVE = 5 * 60 * 1000L; // milliseconds
     private static final long JOIN_WAIT_INTERRUPT = 1 * 60 * 1000L; // milliseconds
@@ -141,6 +157,13 @@ class Core {
     private static final int POP3_KEEP_EXTRA = 100; // messages
 
     private static final Map<Long, List<EntityIdentity>> accountIdentities = new HashMap<>();
+    private static final Map<Long, Integer> accountWorkers = new HashMap<>(); // active download workers
+
+    private static final ExecutorService executorPrefetch =
+            Helper.getBackgroundExecutor(0, "prefetch");
+
+    private static final ExecutorService executorDownload =
+            Helper.getBackgroundExecutor(0, "download");
 
     static void clearIdentities() {
         synchronized (accountIdentities) {
@@ -174,6 +197,8 @@ class Core {
 
             NotificationManager nm = Helper.getSystemService(context, NotificationManager.class);
 
+            OperationIndex index = new OperationIndex(account.protocol, ops);
+
             int retry = 0;
             boolean group = true;
             Log.i(folder.name + " executing serial=" + serial + " operations=" + ops.size());
@@ -236,110 +261,48 @@ class Core {
                                 !EntityOperation.FETCH.equals(op.name) &&
                                 !EntityOperation.REPORT.equals(op.name) &&
                                 !EntityOperation.SYNC.equals(op.name) &&
+                                !EntityOperation.STORE.equals(op.name) &&
+                                !EntityOperation.RELOCATE.equals(op.name) &&
+                                !EntityOperation.ERASE.equals(op.name) &&
                                 !EntityOperation.SUBSCRIBE.equals(op.name) &&
                                 !EntityOperation.PURGE.equals(op.name) &&
                                 !EntityOperation.EXPUNGE.equals(op.name))
                             throw new MessageRemovedException();
 
                         // Process similar operations
-                        boolean skip = false;
-                        for (int j = 1; j < ops.size(); j++) {
-                            TupleOperationEx next = ops.get(j);
-
-                            switch (op.name) {
-                                case EntityOperation.SEEN:
-                                case EntityOperation.FLAG:
-                                    if (group &&
-                                            message.uid != null &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_IMAP) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same flag
-                                        if (jargs.getBoolean(0) == jnext.getBoolean(0)) {
-                                            EntityMessage m = db.message().getMessage(next.message);
-                                            if (m != null && m.uid != null)
-                                                similar.put(next, m);
-                                        }
-                                    }
-                                    break;
-
-                                case EntityOperation.ADD:
-                                    // Same message
-                                    if (Objects.equals(op.message, next.message) &&
-                                            (EntityOperation.ADD.equals(next.name) ||
-                                                    EntityOperation.DELETE.equals(next.name)))
-                                        skip = true;
-                                    break;
-
-                                case EntityOperation.FETCH:
-                                    if (EntityOperation.FETCH.equals(next.name)) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same uid, invalidate, delete flag
-                                        if (jargs.getLong(0) == jnext.getLong(0) &&
-                                                jargs.optBoolean(1) == jnext.optBoolean(1) &&
-                                                jargs.optBoolean(2) == jnext.optBoolean(2))
-                                            skip = true;
-                                    }
-                                    break;
-
-                                case EntityOperation.DOWNLOAD:
-                                    if (EntityOperation.DOWNLOAD.equals(next.name)) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same uid
-                                        if (jargs.getLong(0) == jnext.getLong(0))
-                                            skip = true;
-                                    }
-                                    break;
-
-                                case EntityOperation.MOVE:
-                                    if (group &&
-                                            message.uid != null &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_IMAP) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same target
-                                        if (jargs.getLong(0) == jnext.getLong(0) &&
-                                                jargs.optBoolean(4) == jnext.optBoolean(4)) {
-                                            EntityMessage m = db.message().getMessage(next.message);
-                                            if (m != null && m.uid != null)
-                                                similar.put(next, m);
-                                        }
-                                    }
-                                    if (group &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_POP) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same target
-                                        if (jargs.getLong(0) == jnext.getLong(0)) {
-                                            EntityMessage m = db.message().getMessage(next.message);
-                                            if (m != null)
-                                                similar.put(next, m);
-                                        }
-                                    }
-                                    break;
+                        boolean skip = index.isSuperseded(op);
+                        boolean imap = (account.protocol == EntityAccount.TYPE_IMAP);
+                        // Messages to add are not on the server yet
+                        boolean needsUid = (imap && !EntityOperation.ADD.equals(op.name));
+                        if (!skip && group && message != null && (!needsUid || message.uid != null)) {
+                            List<TupleOperationEx> candidates = index.getSimilar(op);
+                            for (List<TupleOperationEx> part : Helper.chunkList(candidates, Math.min(chunk_size, MAX_SIMILAR_QUERY))) {
+                                List<Long> mids = new ArrayList<>();
+                                for (TupleOperationEx next : part)
+                                    if (next.message != null)
+                                        mids.add(next.message);
+
+                                Map<Long, EntityMessage> messages = new HashMap<>();
+                                for (EntityMessage m : db.message().getMessagesByIds(mids))
+                                    messages.put(m.id, m);
+
+                                for (TupleOperationEx next : part) {
+                                    EntityMessage m = messages.get(next.message);
+                                    if (m == null)
+                                        continue;
+                                    if (needsUid &&
+                                            (m.uid == null ||
+                                                    (EntityOperation.DELETE.equals(op.name) &&
+                                                            m.ui_deleted != message.ui_deleted)))
+                                        continue;
+                                    similar.put(next, m);
+                                    if (similar.size() >= chunk_size)
+                                        break;
+                                }
 
-                                case EntityOperation.DELETE:
-                                    if (group &&
-                                            message.uid != null &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_IMAP) {
-                                        EntityMessage m = db.message().getMessage(next.message);
-                                        if (m != null &&
-                                                m.uid != null && m.ui_deleted == message.ui_deleted)
-                                            similar.put(next, m);
-                                    }
-                                    if (group &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_POP) {
-                                        EntityMessage m = db.message().getMessage(next.message);
-                                        if (m != null)
-                                            similar.put(next, m);
-                                    }
+                                if (similar.size() >= chunk_size)
                                     break;
                             }
-
-                            if (similar.size() >= chunk_size)
-                                break;
                         }
 
                         if (skip) {
@@ -348,6 +311,7 @@ class Core {
                                     " msg=" + op.message + " args=" + op.args);
                             db.operation().deleteOperation(op.id);
                             ops.remove(op);
+                            index.remove(op);
                             continue;
                         }
 
@@ -442,6 +406,18 @@ class Core {
                                     onSetFlag(context, jargs, folder, messages, (IMAPFolder) ifolder, Flags.Flag.FLAGGED);
                                     break;
 
+                                case EntityOperation.STORE:
+                                    onStore(context, jargs, folder, op, (IMAPFolder) ifolder, state);
+                                    break;
+
+                                case EntityOperation.RELOCATE:
+                                    onRelocate(context, jargs, account, folder, op, (IMAPFolder) ifolder, state);
+                                    break;
+
+                                case EntityOperation.ERASE:
+                                    onErase(context, jargs, folder, op, (IMAPFolder) ifolder, state);
+                                    break;
+
                                 case EntityOperation.ANSWERED:
                                     onAnswered(context, jargs, folder, message, (IMAPFolder) ifolder);
                                     break;
@@ -451,19 +427,19 @@ class Core {
                                     break;
 
                                 case EntityOperation.LABEL:
-                                    onLabel(context, jargs, folder, message, (IMAPStore) istore, (IMAPFolder) ifolder, state);
+                                    onLabel(context, jargs, account, folder, message, (IMAPStore) istore, (IMAPFolder) ifolder, state);
                                     break;
 
                                 case EntityOperation.ADD:
-                                    onAdd(context, jargs, account, folder, message, (IMAPStore) istore, (IMAPFolder) ifolder, state);
+                                    onAdd(context, jargs, account, folder, messages, getOperationIds(op, similar.keySet()), (IMAPStore) istore, (IMAPFolder) ifolder, state);
                                     break;
 
                                 case EntityOperation.MOVE:
-                                    onMove(context, jargs, false, account, folder, messages, (IMAPStore) istore, (IMAPFolder) ifolder, state);
+                                    onMove(context, jargs, false, account, folder, messages, getMoveCopies(op, similar.keySet()), (IMAPStore) istore, (IMAPFolder) ifolder, state);
                                     break;
 
                                 case EntityOperation.COPY:
-                                    onMove(context, jargs, true, account, folder, Arrays.asList(message), (IMAPStore) istore, (IMAPFolder) ifolder, state);
+                                    onMove(context, jargs, true, account, folder, Arrays.asList(message), null, (IMAPStore) istore, (IMAPFolder) ifolder, state);
                                     break;
 
                                 case EntityOperation.FETCH:
@@ -517,7 +493,7 @@ class Core {
                                     break;
 
                                 case EntityOperation.EXPUNGE:
-                                    onExpungeFolder(context, jargs, folder, (IMAPFolder) ifolder);
+                                    onExpungeFolder(context, jargs, account, folder, (IMAPFolder) ifolder);
                                     break;
 
                                 case EntityOperation.RULE:
@@ -554,8 +530,10 @@ class Core {
                         }
 
                         ops.remove(op);
+                        ops.removeAll(similar.keySet());
+                        index.remove(op);
                         for (TupleOperationEx s : similar.keySet())
-                            ops.remove(s);
+                            index.remove(s);
                     } catch (Throwable ex) {
                         iservice.dump(account.name + "/" + folder.name);
                         if (ex instanceof OperationCanceledException ||
@@ -590,6 +568,26 @@ class Core {
                             db.endTransaction();
                         }
 
+                        // Operations completed by a partially executed group were deleted
+                        if (similar.size() > 0) {
+                            List<TupleOperationEx> done = new ArrayList<>();
+                            if (db.operation().getOperation(op.id) == null)
+                                done.add(op);
+                            for (TupleOperationEx s : similar.keySet())
+                                if (db.operation().getOperation(s.id) == null)
+                                    done.add(s);
+                            if (done.size() > 0) {
+                                Log.i(folder.name + " completed=" + done.size() + "/" + (similar.size() + 1));
+                                ops.removeAll(done);
+                                for (TupleOperationEx d : done)
+                                    index.remove(d);
+                                if (done.contains(op)) {
+                                    group = false;
+                                    continue;
+                                }
+                            }
+                        }
+
                         if (similar.size() > 0 && op.tries < TOTAL_RETRY_MAX) {
                             // Retry individually
                             group = false;
@@ -735,6 +733,7 @@ class Core {
                             }
 
                             ops.remove(op);
+                            index.remove(op);
 
                             if (!MessageHelper.isRemoved(ex)) {
                                 int resid = context.getResources().getIdentifier(
@@ -986,6 +985,222 @@ class Core {
                 db.message().setMessageDeleted(message.id, set);
     }
 
+    private static void onStore(Context context, JSONArray jargs, EntityFolder folder, EntityOperation op, IMAPFolder ifolder, State state) throws MessagingException, JSONException {
+        // Bulk (un)set flag by UID set
+        DB db = DB.getInstance(context);
+
+        boolean set = jargs.getBoolean(0);
+        String keyword = jargs.getString(1);
+        UIDSet[] uidsets = UIDSet.parseUIDSets(jargs.getString(2));
+
+        Flags.Flag flag;
+        if ("seen".equals(keyword))
+            flag = Flags.Flag.SEEN;
+        else if ("flagged".equals(keyword))
+            flag = Flags.Flag.FLAGGED;
+        else
+            throw new IllegalArgumentException("Invalid flag=" + keyword);
+
+        if (folder.read_only || uidsets == null || uidsets.length == 0)
+            return;
+
+        // Synchronize will restore the flags
+        if (!ifolder.getPermanentFlags().contains(flag))
+            throw new IllegalArgumentException("Flag not supported=" + keyword);
+
+        long total = UIDSet.size(uidsets);
+        long done = 0;
+        for (int from = 0; from < uidsets.length; from += MAX_STORE_RANGES) {
+            if (!state.isRunning())
+                throw new OperationCanceledException("Store");
+
+            final UIDSet[] part = Arrays.copyOfRange(uidsets, from, Math.min(from + MAX_STORE_RANGES, uidsets.length));
+            ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                @Override
+                public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                    protocol.uidStoreFlags(part, new Flags(flag), set);
+                    return null;
+                }
+            });
+
+            try {
+                db.beginTransaction();
+
+                for (UIDSet range : part)
+                    if (flag == Flags.Flag.SEEN)
+                        db.message().setMessagesSeen(folder.id, range.start, range.end, set);
+                    else
+                        db.message().setMessagesFlagged(folder.id, range.start, range.end, set);
+
+                UIDSet[] remaining = Arrays.copyOfRange(uidsets, Math.min(from + MAX_STORE_RANGES, uidsets.length), uidsets.length);
+                setRemaining(context, op, jargs, 2, remaining, total);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            done += UIDSet.size(part);
+            Log.i(folder.name + " stored " + keyword + "=" + set + " " + done + "/" + total);
+        }
+
+        EntityLog.log(context, folder.name + " stored " + keyword + "=" + set + " messages=" + total);
+    }
+
+    private static void onRelocate(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, EntityOperation op, IMAPFolder ifolder, State state) throws MessagingException, JSONException {
+        // Bulk move by UID set
+        DB db = DB.getInstance(context);
+
+        long id = jargs.getLong(0);
+        boolean seen = jargs.optBoolean(1);
+        boolean unflag = jargs.optBoolean(2);
+        UIDSet[] uidsets = UIDSet.parseUIDSets(jargs.getString(3));
+
+        EntityFolder target = db.folder().getFolder(id);
+        if (target == null)
+            throw new FolderNotFoundException();
+        if (folder.id.equals(target.id))
+            throw new IllegalArgumentException("self type=" + folder.type + "/" + target.type);
+        if (!target.selectable)
+            throw new IllegalArgumentException("not selectable type=" + target.type);
+
+        if (uidsets == null || uidsets.length == 0)
+            return;
+
+        // Some servers return different capabilities for different sessions
+        boolean canMove = !account.isYahooJp() &&
+                MessageHelper.hasCapability(ifolder, "MOVE");
+        boolean uid_expunge = isUidExpunge(context, ifolder);
+        Flags flags = ifolder.getPermanentFlags();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean perform_expunge = prefs.getBoolean("perform_expunge", true);
+
+        long total = UIDSet.size(uidsets);
+        long done = 0;
+        for (int from = 0; from < uidsets.length; from += MAX_STORE_RANGES) {
+            if (!state.isRunning())
+                throw new OperationCanceledException("Move");
+
+            final UIDSet[] part = Arrays.copyOfRange(uidsets, from, Math.min(from + MAX_STORE_RANGES, uidsets.length));
+            ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                @Override
+                public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                    // Mark read
+                    if (seen && flags.contains(Flags.Flag.SEEN))
+                        protocol.uidStoreFlags(part, new Flags(Flags.Flag.SEEN), true);
+
+                    // Remove star
+                    if (unflag && flags.contains(Flags.Flag.FLAGGED))
+                        protocol.uidStoreFlags(part, new Flags(Flags.Flag.FLAGGED), false);
+
+                    // https://tools.ietf.org/html/rfc6851
+                    if (canMove)
+                        protocol.uidMove(part, target.name);
+                    else {
+                        protocol.uidCopy(part, target.name);
+                        protocol.uidStoreFlags(part, new Flags(Flags.Flag.DELETED), true);
+                        if (!perform_expunge)
+                            Log.i(folder.name + " not expunging");
+                        else if (uid_expunge)
+                            protocol.uidexpunge(part);
+                        else
+                            protocol.expunge();
+                    }
+                    return null;
+                }
+            });
+
+            try {
+                db.beginTransaction();
+
+                for (UIDSet range : part)
+                    db.message().deleteMessages(folder.id, range.start, range.end);
+
+                UIDSet[] remaining = Arrays.copyOfRange(uidsets, Math.min(from + MAX_STORE_RANGES, uidsets.length), uidsets.length);
+                setRemaining(context, op, jargs, 3, remaining, total);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            done += UIDSet.size(part);
+            Log.i(folder.name + " moved to " + target.name + " " + done + "/" + total);
+        }
+
+        int count = MessageHelper.getMessageCount(ifolder);
+        db.folder().setFolderTotal(folder.id, count < 0 ? null : count, new Date().getTime());
+
+        // The moved messages were not copied locally
+        EntityOperation.sync(context, target.id, false);
+
+        EntityLog.log(context, folder.name + " moved to " + target.name + " messages=" + total);
+    }
+
+    private static void onErase(Context context, JSONArray jargs, EntityFolder folder, EntityOperation op, IMAPFolder ifolder, State state) throws MessagingException, JSONException {
+        // Bulk delete by UID set
+        DB db = DB.getInstance(context);
+
+        UIDSet[] uidsets = UIDSet.parseUIDSets(jargs.getString(0));
+        if (uidsets == null || uidsets.length == 0)
+            return;
+
+        boolean uid_expunge = isUidExpunge(context, ifolder);
+
+        long total = UIDSet.size(uidsets);
+        long done = 0;
+        for (int from = 0; from < uidsets.length; from += MAX_STORE_RANGES) {
+            if (!state.isRunning())
+                throw new OperationCanceledException("Delete");
+
+            final UIDSet[] part = Arrays.copyOfRange(uidsets, from, Math.min(from + MAX_STORE_RANGES, uidsets.length));
+            ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                @Override
+                public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                    protocol.uidStoreFlags(part, new Flags(Flags.Flag.DELETED), true);
+                    if (uid_expunge)
+                        protocol.uidexpunge(part);
+                    else
+                        protocol.expunge();
+                    return null;
+                }
+            });
+
+            try {
+                db.beginTransaction();
+
+                for (UIDSet range : part)
+                    db.message().deleteMessages(folder.id, range.start, range.end);
+
+                UIDSet[] remaining = Arrays.copyOfRange(uidsets, Math.min(from + MAX_STORE_RANGES, uidsets.length), uidsets.length);
+                setRemaining(context, op, jargs, 0, remaining, total);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            done += UIDSet.size(part);
+            Log.i(folder.name + " deleted " + done + "/" + total);
+        }
+
+        int count = MessageHelper.getMessageCount(ifolder);
+        db.folder().setFolderTotal(folder.id, count < 0 ? null : count, new Date().getTime());
+
+        EntityLog.log(context, folder.name + " deleted messages=" + total);
+    }
+
+    private static void setRemaining(Context context, EntityOperation op, JSONArray jargs, int index, UIDSet[] remaining, long total) throws JSONException {
+        // Resume with the remaining messages on failure
+        // The remaining and total number of messages are shown as progress
+        if (jargs.length() <= index + 1)
+            jargs.put(index + 1, total);
+        jargs.put(index, UIDSet.toString(remaining));
+        op.setArgs(jargs);
+        DB.getInstance(context).operation().setOperationArgs(op.id, op.args);
+    }
+
     private static void onAnswered(Context context, JSONArray jargs, EntityFolder folder, EntityMessage message, IMAPFolder ifolder) throws MessagingException, JSONException {
         // Mark message (un)answered
         DB db = DB.getInstance(context);
@@ -1041,7 +1256,7 @@ class Core {
         imessage.setFlags(flags, set);
     }
 
-    private static void onLabel(Context context, JSONArray jargs, EntityFolder folder, EntityMessage message, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException, IOException {
+    private static void onLabel(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, EntityMessage message, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException, IOException {
         // Set/clear Gmail label
         // Gmail does not push label changes
         String label = jargs.getString(0);
@@ -1085,7 +1300,7 @@ class Core {
                     if (imessage == null)
                         throw new MessageRemovedException();
                     imessage.setFlag(Flags.Flag.DELETED, true);
-                    expunge(context, ifolder, Arrays.asList(imessage));
+                    expunge(context, account, ifolder, Arrays.asList(imessage));
                 } catch (MessagingException ex) {
                     Log.w(ex);
                 }
@@ -1124,37 +1339,97 @@ class Core {
         }
     }
 
-    private static void onAdd(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, EntityMessage message, IMAPStore istore, IMAPFolder ifolder, State state) throws MessagingException, IOException {
-        // Add message
-        DB db = DB.getInstance(context);
+    private static Map<Long, Long> getOperationIds(TupleOperationEx op, Collection<TupleOperationEx> similar) {
+        // Operation ids by message id
+        Map<Long, Long> opids = new HashMap<>();
+        if (op.message != null)
+            opids.put(op.message, op.id);
+        for (TupleOperationEx s : similar)
+            if (s.message != null)
+                opids.put(s.message, s.id);
+        return opids;
+    }
 
+    private static void onAdd(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, List<EntityMessage> messages, Map<Long, Long> opids, IMAPStore istore, IMAPFolder ifolder, State state) throws MessagingException, IOException {
+        // Add messages
         if (folder.local) {
             Log.i(folder.name + " local add");
             return;
         }
 
-        // Drafts can change accounts
-        if (jargs.length() == 0 && !folder.id.equals(message.folder))
-            throw new IllegalArgumentException("Message folder changed");
-
         // Get arguments
         long target = jargs.optLong(0, folder.id);
         boolean autoread = jargs.optBoolean(1, false);
-        boolean copy = jargs.optBoolean(2, false); // Cross account
 
         if (target != folder.id)
             throw new IllegalArgumentException("Invalid folder");
 
+        Properties props = MessageHelper.getSessionProperties(account.unicode);
+        Session isession = Session.getInstance(props, null);
+        Flags flags = ifolder.getPermanentFlags();
+        boolean uidplus = MessageHelper.hasCapability(ifolder, "UIDPLUS");
+
+        // https://datatracker.ietf.org/doc/html/rfc3502
+        // Messages are prepared per append batch, so only one batch is held in memory
+        DB db = DB.getInstance(context);
+        List<EntityMessage> batch = new ArrayList<>();
+        List<Message> ibatch = new ArrayList<>();
+        long size = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            EntityMessage message = messages.get(i);
+            batch.add(message);
+            ibatch.add(getAddMessage(context, jargs, account, folder, message, isession, flags, autoread));
+            size += message.getRawFile(context).length();
+
+            if (size < MAX_APPEND_BYTES && i + 1 < messages.size())
+                continue;
+
+            AppendUID[] uids = null;
+            Message[] iarray = ibatch.toArray(new Message[0]);
+            if (iarray.length > 1) {
+                Log.i(folder.name + " appending count=" + iarray.length + " size=" + size);
+                uids = ifolder.multiAppendUIDMessages(iarray);
+            } else if (uidplus)
+                // https://tools.ietf.org/html/rfc4315
+                uids = ifolder.appendUIDMessages(iarray);
+            else
+                ifolder.appendMessages(iarray);
+
+            for (int j = 0; j < batch.size(); j++) {
+                Long newuid = null;
+                if (uidplus && uids != null && j < uids.length && uids[j] != null && uids[j].uid > 0) {
+                    newuid = uids[j].uid;
+                    Log.i(folder.name + " appended uid=" + newuid);
+                }
+                EntityMessage added = batch.get(j);
+                onAdded(context, jargs, account, folder, added, newuid, istore, ifolder, state);
+
+                // Prevent appending again when the rest of the group is retried
+                // or when preparing a later batch fails
+                Long opid = (opids == null ? null : opids.get(added.id));
+                if (opid != null && messages.size() > 1)
+                    db.operation().deleteOperation(opid);
+            }
+
+            batch.clear();
+            ibatch.clear();
+            size = 0;
+        }
+    }
+
+    private static MimeMessage getAddMessage(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, EntityMessage message, Session isession, Flags flags, boolean autoread) throws MessagingException, IOException {
+        DB db = DB.getInstance(context);
+
+        // Drafts can change accounts
+        if (jargs.length() == 0 && !folder.id.equals(message.folder))
+            throw new IllegalArgumentException("Message folder changed");
+
         // External draft might have a uid only
         if (TextUtils.isEmpty(message.msgid)) {
             message.msgid = EntityMessage.generateMessageId();
             db.message().setMessageMsgId(message.id, message.msgid);
         }
 
-        Properties props = MessageHelper.getSessionProperties(account.unicode);
-        Session isession = Session.getInstance(props, null);
-        Flags flags = ifolder.getPermanentFlags();
-
         // Get raw message
         MimeMessage imessage;
         File file = message.getRawFile(context);
@@ -1262,17 +1537,14 @@ class Core {
         if (flags.contains(Flags.Flag.DRAFT))
             imessage.setFlag(Flags.Flag.DRAFT, EntityFolder.DRAFTS.equals(folder.type));
 
-        // Add message
-        Long newuid = null;
-        if (MessageHelper.hasCapability(ifolder, "UIDPLUS")) {
-            // https://tools.ietf.org/html/rfc4315
-            AppendUID[] uids = ifolder.appendUIDMessages(new Message[]{imessage});
-            if (uids != null && uids.length > 0 && uids[0] != null && uids[0].uid > 0) {
-                newuid = uids[0].uid;
-                Log.i(folder.name + " appended uid=" + newuid);
-            }
-        } else
-            ifolder.appendMessages(new Message[]{imessage});
+        return imessage;
+    }
+
+    private static void onAdded(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, EntityMessage message, Long newuid, IMAPStore istore, IMAPFolder ifolder, State state) throws MessagingException, IOException {
+        DB db = DB.getInstance(context);
+
+        boolean autoread = jargs.optBoolean(1, false);
+        boolean copy = jargs.optBoolean(2, false); // Cross account
 
         if (folder.id.equals(message.folder)) {
             // Prevent deleting message
@@ -1334,7 +1606,7 @@ class Core {
                     }
                 }
 
-                expunge(context, ifolder, delete);
+                expunge(context, account, ifolder, delete);
 
             } catch (MessagingException ex) {
                 Log.w(ex);
@@ -1398,7 +1670,24 @@ class Core {
         }
     }
 
-    private static void onMove(Context context, JSONArray jargs, boolean copy, EntityAccount account, EntityFolder folder, List<EntityMessage> messages, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException, IOException {
+    private static Map<Long, Long> getMoveCopies(TupleOperationEx op, Collection<TupleOperationEx> similar) {
+        // Temporary copies in the target folder by message id, made when the moves were queued
+        Map<Long, Long> copies = new HashMap<>();
+        List<TupleOperationEx> ops = new ArrayList<>();
+        ops.add(op);
+        ops.addAll(similar);
+        for (TupleOperationEx o : ops)
+            try {
+                long tmpid = new JSONArray(o.args).optLong(2, -1);
+                if (o.message != null && tmpid > 0)
+                    copies.put(o.message, tmpid);
+            } catch (JSONException ex) {
+                Log.w(ex);
+            }
+        return copies;
+    }
+
+    private static void onMove(Context context, JSONArray jargs, boolean copy, EntityAccount account, EntityFolder folder, List<EntityMessage> messages, Map<Long, Long> copies, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException, IOException {
         // Move message
         DB db = DB.getInstance(context);
 
@@ -1466,6 +1755,12 @@ class Core {
         boolean canMove = !account.isYahooJp() &&
                 MessageHelper.hasCapability(ifolder, "MOVE");
 
+        // https://datatracker.ietf.org/doc/html/rfc4315#section-3
+        boolean uidplus = (MessageHelper.hasCapability(ifolder, "UIDPLUS") &&
+                !MessageHelper.hasCapability(ifolder, "X-UIDONLY"));
+        Map<EntityMessage, Long> uids = new HashMap<>();
+        int rekeyed = 0;
+
         // Some providers do not support the COPY operation for drafts
         boolean draft = (EntityFolder.DRAFTS.equals(folder.type) || EntityFolder.DRAFTS.equals(target.type));
         boolean duplicate = (copy && !account.isGmail()) || (draft && account.isGmail());
@@ -1553,9 +1848,14 @@ class Core {
             }
 
             // https://tools.ietf.org/html/rfc6851
+            Message[] imessages = map.keySet().toArray(new Message[0]);
+            AppendUID[] appended = null;
             if (!copy && canMove)
                 try {
-                    ifolder.moveMessages(map.keySet().toArray(new Message[0]), itarget);
+                    if (uidplus)
+                        appended = ifolder.moveUIDMessages(imessages, itarget);
+                    else
+                        ifolder.moveMessages(imessages, itarget);
                 } catch (MessagingException ex) {
                     if (!(map.size() == 1 &&
                             ex.getCause() instanceof CommandFailedException &&
@@ -1563,8 +1863,13 @@ class Core {
                             ex.getCause().getMessage().contains("[EXPUNGEISSUED]")))
                         throw ex;
                 }
+            else if (uidplus)
+                appended = ifolder.copyUIDMessages(imessages, itarget);
             else
-                ifolder.copyMessages(map.keySet().toArray(new Message[0]), itarget);
+                ifolder.copyMessages(imessages, itarget);
+
+            if (appended != null)
+                rekeyed = rekeyMoved(context, target, imessages, appended, map, copies, uids);
         }
 
         // Delete source
@@ -1577,7 +1882,7 @@ class Core {
                 } catch (MessageRemovedException ex) {
                     Log.w(ex);
                 }
-            expunge(context, ifolder, deleted);
+            expunge(context, account, ifolder, deleted);
         } else {
             int count = MessageHelper.getMessageCount(ifolder);
             db.folder().setFolderTotal(folder.id, count < 0 ? null : count, new Date().getTime());
@@ -1587,6 +1892,10 @@ class Core {
         boolean fetch = (copy || delete ||
                 !"connected".equals(target.state) ||
                 !MessageHelper.hasCapability(ifolder, "IDLE"));
+        if (fetch && !draft && !delete && rekeyed == map.size()) {
+            Log.i(target.name + " moved messages rekeyed=" + rekeyed);
+            fetch = false;
+        }
         if (draft || fetch)
             try {
                 Log.i(target.name + " moved message fetch=" + fetch);
@@ -1596,16 +1905,19 @@ class Core {
                 List<Message> ideletes = new ArrayList<>();
                 for (EntityMessage message : map.values())
                     try {
-                        String msgid = msgids.get(message);
-                        if (msgid == null)
-                            msgid = message.msgid;
-
-                        if (TextUtils.isEmpty(msgid))
-                            throw new IllegalArgumentException("move: msgid missing");
-
-                        Long uid = findUid(context, account, itarget, msgid);
-                        if (uid == null)
-                            throw new IllegalArgumentException("move: uid not found");
+                        Long uid = uids.get(message);
+                        if (uid == null) {
+                            String msgid = msgids.get(message);
+                            if (msgid == null)
+                                msgid = message.msgid;
+
+                            if (TextUtils.isEmpty(msgid))
+                                throw new IllegalArgumentException("move: msgid missing");
+
+                            uid = findUid(context, account, itarget, msgid);
+                            if (uid == null)
+                                throw new IllegalArgumentException("move: uid not found");
+                        }
 
                         if (draft || duplicate) {
                             Message icopy = itarget.getMessageByUID(uid);
@@ -1645,7 +1957,7 @@ class Core {
                             sync = true;
                     }
 
-                expunge(context, itarget, ideletes);
+                expunge(context, account, itarget, ideletes);
 
                 if (sync)
                     EntityOperation.sync(context, target.id, false);
@@ -1669,6 +1981,64 @@ class Core {
             }
     }
 
+    private static int rekeyMoved(Context context, EntityFolder target,
+                                  Message[] imessages, AppendUID[] appended,
+                                  Map<Message, EntityMessage> map, Map<Long, Long> copies,
+                                  Map<EntityMessage, Long> uids) {
+        // The local copy in the target folder was made when the move was queued
+        // Giving it the new UID prevents synchronizing and downloading the message again
+        int rekeyed = 0;
+        DB db = DB.getInstance(context);
+        try {
+            db.beginTransaction();
+
+            for (int i = 0; i < imessages.length && i < appended.length; i++) {
+                AppendUID auid = appended[i];
+                EntityMessage message = map.get(imessages[i]);
+                if (auid == null || message == null)
+                    continue;
+
+                if (target.uidv != null && target.uidv != auid.uidvalidity) {
+                    Log.w(target.name + " COPYUID uidv=" + auid.uidvalidity + "/" + target.uidv);
+                    continue;
+                }
+
+                uids.put(message, auid.uid);
+
+                if (db.message().getMessageByUid(target.id, auid.uid) != null)
+                    continue;
+
+                Long tmpid = (copies == null ? null : copies.get(message.id));
+                if (tmpid != null) {
+                    EntityMessage copy = db.message().getMessage(tmpid);
+                    if (copy != null && target.id.equals(copy.folder) && copy.uid == null) {
+                        Log.i(target.name + " rekey id=" + copy.id + " uid=" + auid.uid);
+                        db.message().setMessageUid(copy.id, auid.uid);
+                        rekeyed++;
+                    }
+                    continue;
+                }
+
+                if (TextUtils.isEmpty(message.msgid))
+                    continue;
+
+                for (EntityMessage copy : db.message().getMessagesByMsgId(target.account, message.msgid))
+                    if (target.id.equals(copy.folder) && copy.uid == null) {
+                        Log.i(target.name + " rekey id=" + copy.id + " uid=" + auid.uid);
+                        db.message().setMessageUid(copy.id, auid.uid);
+                        rekeyed++;
+                        break;
+                    }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return rekeyed;
+    }
+
     private static void onFetch(Context context, JSONArray jargs, EntityFolder folder, IMAPStore istore, IMAPFolder ifolder, State state) throws JSONException, MessagingException, IOException {
         long uid = jargs.getLong(0);
         boolean invalidate = jargs.optBoolean(1);
@@ -1711,7 +2081,7 @@ class Core {
                         JSONArray jlabel = new JSONArray();
                         jlabel.put(0, folder.name);
                         jlabel.put(1, true);
-                        onLabel(context, jlabel, folder, message, istore, ifolder, state);
+                        onLabel(context, jlabel, account, folder, message, istore, ifolder, state);
                     } catch (Throwable ex1) {
                         Log.e(ex1);
                     }
@@ -1768,7 +2138,7 @@ class Core {
                             JSONArray jlabel = new JSONArray();
                             jlabel.put(0, folder.name);
                             jlabel.put(1, false);
-                            onLabel(context, jlabel, folder, message, istore, ifolder, state);
+                            onLabel(context, jlabel, account, folder, message, istore, ifolder, state);
                         } catch (Throwable ex1) {
                             Log.e(ex1);
                         }
@@ -1842,7 +2212,7 @@ class Core {
 
                         itrash.setFlags(trashed.toArray(new Message[0]), new Flags(Flags.Flag.DELETED), true);
                         if (perform_expunge)
-                            expunge(context, itrash, trashed);
+                            expunge(context, account, itrash, trashed);
                     } finally {
                         if (itrash.isOpen())
                             itrash.close();
@@ -1876,7 +2246,7 @@ class Core {
 
                 if (perform_expunge) {
                     ifolder.setFlags(idelete, new Flags(Flags.Flag.DELETED), true);
-                    expunge(context, ifolder, Arrays.asList(idelete));
+                    expunge(context, account, ifolder, Arrays.asList(idelete));
                     for (EntityMessage message : messages)
                         db.message().deleteMessage(message.id);
                 } else {
@@ -1939,7 +2309,7 @@ class Core {
                     }
 
                 if (perform_expunge) {
-                    if (deleted.size() == 0 || expunge(context, ifolder, deleted))
+                    if (deleted.size() == 0 || expunge(context, account, ifolder, deleted))
                         db.message().deleteMessage(message.id);
                 } else {
                     if (deleted.size() > 0)
@@ -2052,7 +2422,7 @@ class Core {
             operation.folder = target.id;
             operation.message = message.id;
             operation.name = EntityOperation.ADD;
-            operation.args = jargs.toString();
+            operation.setArgs(jargs);
             operation.created = new Date().getTime();
             operation.id = db.operation().insertOperation(operation);
         }
@@ -2092,7 +2462,7 @@ class Core {
             operation.folder = target.id;
             operation.message = message.id;
             operation.name = EntityOperation.ADD;
-            operation.args = jargs.toString();
+            operation.setArgs(jargs);
             operation.created = new Date().getTime();
             operation.id = db.operation().insertOperation(operation);
         }
@@ -2234,7 +2604,7 @@ class Core {
 
         if (trash == null) {
             imessage.setFlag(Flags.Flag.DELETED, true);
-            expunge(context, ifolder, Arrays.asList(imessage));
+            expunge(context, account, ifolder, Arrays.asList(imessage));
         } else
             EntityOperation.queue(context, message, EntityOperation.MOVE, trash.id);
     }
@@ -3125,7 +3495,7 @@ class Core {
                     idelete.remove(imessage);
             }
             Log.i(folder.name + " purge deleted");
-            expunge(context, ifolder, idelete);
+            expunge(context, account, ifolder, idelete);
         } catch (Throwable ex) {
             Log.e(ex);
             throw ex;
@@ -3134,7 +3504,7 @@ class Core {
         }
     }
 
-    private static void onExpungeFolder(Context context, JSONArray jargs, EntityFolder folder, IMAPFolder ifolder) throws MessagingException {
+    private static void onExpungeFolder(Context context, JSONArray jargs, EntityAccount account, EntityFolder folder, IMAPFolder ifolder) throws MessagingException {
         Log.i(folder.name + " expunge");
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -3151,7 +3521,7 @@ class Core {
                 return;
 
             Log.i(ifolder.getName() + " expunging " + TextUtils.join(",", uids));
-            uidExpunge(context, ifolder, uids);
+            uidExpunge(context, account, ifolder, uids);
             Log.i(ifolder.getName() + " expunged " + TextUtils.join(",", uids));
         } else
             ifolder.expunge();
@@ -3253,7 +3623,7 @@ class Core {
 
         if (trash == null) {
             imessage.setFlag(Flags.Flag.DELETED, true);
-            expunge(context, ifolder, Arrays.asList(imessage));
+            expunge(context, account, ifolder, Arrays.asList(imessage));
         } else
             EntityOperation.queue(context, message, EntityOperation.MOVE, trash.id);
     }
@@ -3775,6 +4145,7 @@ class Core {
         final DB db = DB.getInstance(context);
         try {
             SyncStats stats = new SyncStats();
+            long[] traffic = TrafficStatsHelper.getTraffic(ifolder);
 
             // Legacy
             if (jargs.length() == 0)
@@ -3798,6 +4169,8 @@ class Core {
             boolean sync_kept = prefs.getBoolean("sync_kept", true);
             boolean delete_unseen = prefs.getBoolean("delete_unseen", true);
             boolean use_modseq = prefs.getBoolean("use_modseq", true);
+            boolean use_qresync = prefs.getBoolean("use_qresync", false);
+            boolean use_esearch = prefs.getBoolean("use_esearch", false);
             boolean perform_expunge = prefs.getBoolean("perform_expunge", true);
             boolean log = prefs.getBoolean("protocol", false);
 
@@ -3861,12 +4234,14 @@ class Core {
             }
 
             // Check uid validity
+            boolean resync = false;
             try {
                 long uidv = ifolder.getUIDValidity();
                 if (folder.uidv != null && !folder.uidv.equals(uidv)) {
                     Log.w(folder.name + " uid validity changed from " + folder.uidv + " to " + uidv);
                     db.message().deleteLocalMessages(folder.id);
-                }
+                } else if (folder.uidv != null)
+                    resync = true;
                 folder.uidv = uidv;
                 db.folder().setFolderUidValidity(folder.id, uidv);
             } catch (MessagingException ex) {
@@ -3959,32 +4334,156 @@ class Core {
                 Log.i(folder.name + " local old=" + old);
             }
 
+            // https://datatracker.ietf.org/doc/html/rfc7162#section-3.2.6
+            Response[] delta = null;
+            if (use_qresync && resync && modified &&
+                    modseq != null && folder.modseq != null &&
+                    !force && initialize == 0)
+                try {
+                    final long changedsince = folder.modseq;
+                    delta = (Response[]) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                        @Override
+                        public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                            // Folder needs to be opened with ResyncData.QRESYNC
+                            if (!protocol.isEnabled("QRESYNC"))
+                                return null;
+
+                            // This is done outside of JavaMail to prevent changed notifications
+                            Response[] responses = protocol.command("UID FETCH 1:* (UID FLAGS)" +
+                                    " (CHANGEDSINCE " + changedsince + " VANISHED)", null);
+                            protocol.handleResult(responses[responses.length - 1]);
+                            return responses;
+                        }
+                    });
+                } catch (MessagingException ex) {
+                    Log.w(folder.name, ex);
+                }
+
             Message[] imessages;
+            long[] esearch = null; // UIDs, messages are created on demand
             long search;
             Long[] ids;
-            if (modified || !sync_quick_imap || force) {
-                // Get list of local uids
-                final List<Long> uids = db.message().getUids(folder.id, sync_kept || force ? null : sync_time);
-                Log.i(folder.name + " local count=" + uids.size());
+            if (delta != null) {
+                search = SystemClock.elapsedRealtime();
 
-                if (BuildConfig.DEBUG || log)
-                    try {
-                        Status status = (Status) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
-                            @Override
-                            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
-                                return protocol.status(ifolder.getFullName(), null);
-                            }
-                        });
-                        EntityLog.log(context, EntityLog.Type.Protocol, folder.name + " status" +
-                                " total=" + status.total + " unseen=" + status.unseen);
-                    } catch (Throwable ex) {
-                        Log.w(ex);
+                List<Long> vanished = new ArrayList<>();
+                List<Long> changed = new ArrayList<>();
+                List<Long> expunged = new ArrayList<>();
+                Map<Long, FLAGS> changedFlags = new HashMap<>();
+                for (Response response : delta)
+                    if (response instanceof FetchResponse) {
+                        FetchResponse fr = (FetchResponse) response;
+                        UID uid = fr.getItem(UID.class);
+                        FLAGS flags = fr.getItem(FLAGS.class);
+                        if (uid == null || flags == null)
+                            continue;
+                        if (perform_expunge && flags.contains(Flags.Flag.DELETED))
+                            expunged.add(uid.uid);
+                        else {
+                            changed.add(uid.uid);
+                            changedFlags.put(uid.uid, flags);
+                        }
+                    } else if (response instanceof IMAPResponse &&
+                            ((IMAPResponse) response).keyEquals("VANISHED")) {
+                        // "VANISHED" SP "(EARLIER)" SP known-uids
+                        IMAPResponse ir = (IMAPResponse) response;
+                        ir.readAtomStringList();
+                        long[] luids = UIDSet.toArray(UIDSet.parseUIDSets(ir.readAtom()));
+                        if (luids != null)
+                            for (long uid : luids)
+                                vanished.add(uid);
                     }
 
-                // Reduce list of local uids
-                SearchTerm dateTerm = account.use_date
-                        ? new SentDateTerm(ComparisonTerm.GE, new Date(sync_time))
-                        : new ReceivedDateTerm(ComparisonTerm.GE, new Date(sync_time));
+                stats.flags = changed.size() + expunged.size();
+                stats.flags_ms = (SystemClock.elapsedRealtime() - search);
+
+                EntityLog.log(context, folder.name + " qresync" +
+                        " modseq=" + folder.modseq + "/" + modseq +
+                        " vanished=" + vanished.size() +
+                        " changed=" + changed.size() +
+                        " expunged=" + expunged.size() +
+                        " " + stats.flags_ms + " ms");
+
+                if (expunged.size() > 0) {
+                    List<Message> deleted = new ArrayList<>();
+                    for (Message imessage : ifolder.getMessagesByUID(Helper.toLongArray(expunged)))
+                        if (imessage != null)
+                            deleted.add(imessage);
+                    expunge(context, account, ifolder, deleted);
+                    vanished.addAll(expunged);
+                }
+
+                // Delete local messages not at remote anymore
+                for (Long uid : vanished) {
+                    int count = db.message().deleteMessage(folder.id, uid);
+                    Log.i(folder.name + " vanished uid=" + uid + " count=" + count);
+                }
+
+                // Sort for finding referenced/replied-to messages
+                Collections.sort(changed);
+
+                // The delta response has the flags already, so only the labels need to be fetched
+                List<Message> list = new ArrayList<>();
+                if (changed.size() > 0)
+                    for (Message imessage : ifolder.getMessagesByUID(Helper.toLongArray(changed)))
+                        if (imessage instanceof IMAPMessage) {
+                            long uid = ifolder.getUID(imessage);
+                            FLAGS flags = changedFlags.get(uid);
+                            if (flags != null)
+                                ((IMAPMessage) imessage).setFetchedFlags(flags);
+                            list.add(imessage);
+                        }
+                imessages = list.toArray(new Message[0]);
+                ids = new Long[imessages.length];
+
+                if (imessages.length > 0) {
+                    FetchProfile fp = new FetchProfile();
+                    fp.add(UIDFolder.FetchProfileItem.UID);
+                    fp.add(FetchProfile.Item.FLAGS); // For new messages
+                    if (account.isGmail()) {
+                        FetchProfile labels = new FetchProfile();
+                        labels.add(GmailFolder.FetchProfileItem.LABELS);
+                        ifolder.fetch(imessages, labels);
+                        fp.add(GmailFolder.FetchProfileItem.LABELS);
+                    }
+
+                    if (!synchronizeMessages(context,
+                            account, folder,
+                            istore, ifolder,
+                            imessages, ids, fp,
+                            download && initialize == 0, keep_time, sync_unseen, sync_flagged,
+                            state, stats))
+                        modseq = null;
+                }
+
+                // Delete not synchronized messages without uid
+                if (!EntityFolder.isOutgoing(folder.type)) {
+                    int orphans = db.message().deleteOrphans(folder.id, new Date().getTime());
+                    Log.i(folder.name + " deleted orphans=" + orphans);
+                }
+            } else if (modified || !sync_quick_imap || force) {
+                // Get list of local uids
+                final UidSet uids = new UidSet(db.message().getUids(folder.id, sync_kept || force ? null : sync_time));
+                Log.i(folder.name + " local count=" + uids.size());
+
+                if (BuildConfig.DEBUG || log)
+                    try {
+                        Status status = (Status) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                            @Override
+                            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                                return protocol.status(ifolder.getFullName(), null);
+                            }
+                        });
+                        EntityLog.log(context, EntityLog.Type.Protocol, folder.name + " status" +
+                                " total=" + status.total + " unseen=" + status.unseen);
+                    } catch (Throwable ex) {
+                        Log.w(ex);
+                    }
+
+                // Reduce list of local uids
+                SearchTerm dateTerm = account.use_date
+                        ? new SentDateTerm(ComparisonTerm.GE, new Date(sync_time))
+                        : new ReceivedDateTerm(ComparisonTerm.GE, new Date(sync_time));
 
                 SearchTerm searchTerm = dateTerm;
                 if (sync_nodate && !account.isOutlook())
@@ -3995,7 +4494,18 @@ class Core {
                     searchTerm = new OrTerm(searchTerm, new FlagTerm(new Flags(Flags.Flag.FLAGGED), true));
 
                 search = SystemClock.elapsedRealtime();
-                if (sync_time == 0)
+                if (use_esearch && MessageHelper.hasCapability(ifolder, "ESEARCH"))
+                    try {
+                        // https://datatracker.ietf.org/doc/html/rfc4731
+                        esearch = esearch(ifolder, sync_time == 0 ? null : searchTerm);
+                    } catch (MessagingException ex) {
+                        Log.w(folder.name, ex);
+                        esearch = null;
+                    }
+
+                if (esearch != null)
+                    imessages = null;
+                else if (sync_time == 0)
                     imessages = ifolder.getMessages();
                 else
                     try {
@@ -4006,19 +4516,60 @@ class Core {
                         // BAD Could not parse command
                         imessages = ifolder.search(dateTerm);
                     }
-                if (imessages == null)
+                if (imessages == null && esearch == null)
                     imessages = new Message[0];
 
-                for (Message imessage : imessages)
-                    if (imessage instanceof IMAPMessage)
-                        ((IMAPMessage) imessage).invalidateHeaders();
+                if (imessages != null)
+                    for (Message imessage : imessages)
+                        if (imessage instanceof IMAPMessage)
+                            ((IMAPMessage) imessage).invalidateHeaders();
 
+                int found = (esearch == null ? imessages.length : esearch.length);
                 stats.search_ms = (SystemClock.elapsedRealtime() - search);
-                Log.i(folder.name + " remote count=" + imessages.length + " search=" + stats.search_ms + " ms");
+                Log.i(folder.name + " remote count=" + found + " search=" + stats.search_ms + " ms" +
+                        " esearch=" + (esearch != null));
 
-                ids = new Long[imessages.length];
+                ids = new Long[found];
+
+                if (!modified && esearch != null) {
+                    Log.i(folder.name + " quick check esearch");
+
+                    // No messages need to be created to compare UIDs
+                    for (int from = 0; from < esearch.length && !modified; from += SYNC_CHECK_BATCH_SIZE) {
+                        int to = Math.min(esearch.length, from + SYNC_CHECK_BATCH_SIZE);
+                        SyncBatch batch = new SyncBatch(context, folder,
+                                Arrays.copyOfRange(esearch, from, to));
 
-                if (!modified) {
+                        for (int i = from; i < to; i++) {
+                            state.ensureRunning("Sync/IMAP/check");
+
+                            EntityMessage message = batch.getMessageByUid(esearch[i]);
+                            ids[i] = (message == null ? null : message.id);
+                            if (message == null || message.ui_hide) {
+                                Log.i(folder.name + " missing uid=" + esearch[i]);
+                                modified = true;
+                                break;
+                            } else
+                                uids.remove(esearch[i]);
+                        }
+                    }
+
+                    if (uids.size() > 0) {
+                        Log.i(folder.name + " remaining=" + uids.size());
+                        modified = true;
+                    }
+
+                    EntityLog.log(context, folder.name + " modified=" + modified);
+                }
+
+                if (modified && esearch != null) {
+                    // This will fetch the message sequence numbers of the UIDs
+                    imessages = getMessages(ifolder, esearch);
+                    ids = new Long[imessages.length];
+                    esearch = null;
+                }
+
+                if (!modified && esearch == null) {
                     Log.i(folder.name + " quick check");
                     long fetch = SystemClock.elapsedRealtime();
 
@@ -4030,22 +4581,28 @@ class Core {
                     stats.flags_ms = (SystemClock.elapsedRealtime() - fetch);
                     Log.i(folder.name + " remote fetched=" + stats.flags_ms + " ms");
 
-                    for (int i = 0; i < imessages.length; i++) {
-                        state.ensureRunning("Sync/IMAP/check");
+                    for (int from = 0; from < imessages.length && !modified; from += SYNC_CHECK_BATCH_SIZE) {
+                        int to = Math.min(imessages.length, from + SYNC_CHECK_BATCH_SIZE);
+                        SyncBatch batch = new SyncBatch(context, folder, ifolder,
+                                Arrays.copyOfRange(imessages, from, to));
 
-                        try {
-                            long uid = ifolder.getUID(imessages[i]);
-                            EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-                            ids[i] = (message == null ? null : message.id);
-                            if (message == null || message.ui_hide) {
-                                Log.i(folder.name + " missing uid=" + uid);
+                        for (int i = from; i < to; i++) {
+                            state.ensureRunning("Sync/IMAP/check");
+
+                            try {
+                                long uid = ifolder.getUID(imessages[i]);
+                                EntityMessage message = batch.getMessageByUid(uid);
+                                ids[i] = (message == null ? null : message.id);
+                                if (message == null || message.ui_hide) {
+                                    Log.i(folder.name + " missing uid=" + uid);
+                                    modified = true;
+                                    break;
+                                } else
+                                    uids.remove(uid);
+                            } catch (Throwable ex) {
+                                Log.w(ex);
                                 modified = true;
-                                break;
-                            } else
-                                uids.remove(uid);
-                        } catch (Throwable ex) {
-                            Log.w(ex);
-                            modified = true;
+                            }
                         }
                     }
 
@@ -4084,6 +4641,8 @@ class Core {
                         }
                     });
 
+                    int remotes = 0;
+                    long[] remote = new long[imessages.length];
                     List<Message> deleted = new ArrayList<>();
                     for (int i = 0; i < imessages.length; i++) {
                         state.ensureRunning("Sync/IMAP/delete");
@@ -4095,7 +4654,7 @@ class Core {
                             if (perform_expunge && imessages[i].isSet(Flags.Flag.DELETED))
                                 deleted.add(imessages[i]);
                             else
-                                uids.remove(ifolder.getUID(imessages[i]));
+                                remote[remotes++] = ifolder.getUID(imessages[i]);
                             ok = true;
                         } catch (MessageRemovedException ex) {
                             Log.w(folder.name, ex);
@@ -4111,7 +4670,9 @@ class Core {
                         }
                     }
 
-                    expunge(context, ifolder, deleted);
+                    uids.removeAll(Arrays.copyOf(remote, remotes));
+
+                    expunge(context, account, ifolder, deleted);
 
                     if (uids.size() > 0) {
                         // This is done outside of JavaMail to prevent changed notifications
@@ -4125,33 +4686,17 @@ class Core {
                                 protocol.select(folder.name);
 
                                 // Build ranges
-                                List<Pair<Long, Long>> ranges = new ArrayList<>();
-                                long first = -1;
-                                long last = -1;
-                                for (long uid : uids)
-                                    if (first < 0)
-                                        first = uid;
-                                    else if ((last < 0 ? first : last) + 1 == uid)
-                                        last = uid;
-                                    else {
-                                        ranges.add(new Pair<>(first, last < 0 ? first : last));
-                                        first = uid;
-                                        last = -1;
-                                    }
-                                if (first > 0)
-                                    ranges.add(new Pair<>(first, last < 0 ? first : last));
+                                List<Pair<Long, Long>> ranges = uids.getRanges();
 
-                                // https://datatracker.ietf.org/doc/html/rfc2683#section-3.2.1.5
-                                int chunk_size = prefs.getInt("chunk_size", DEFAULT_CHUNK_SIZE);
-                                if (chunk_size < 200 &&
-                                        (account.isGmail() || account.isOutlook()))
-                                    chunk_size = 200;
-                                List<List<Pair<Long, Long>>> chunks = Helper.chunkList(ranges, chunk_size);
+                                // The number of ranges per command adapts to the server
+                                BatchSize chunker = BatchSize.getChunk(context, account);
 
                                 Log.i(folder.name + " executing uid fetch count=" + uids.size() +
-                                        " ranges=" + ranges.size() + " chunks=" + chunks.size());
-                                for (int c = 0; c < chunks.size(); c++) {
-                                    List<Pair<Long, Long>> chunk = chunks.get(c);
+                                        " ranges=" + ranges.size() + " chunk=" + chunker.get());
+                                for (int c = 0, r = 0; r < ranges.size(); c++) {
+                                    List<Pair<Long, Long>> chunk =
+                                            ranges.subList(r, Math.min(ranges.size(), r + chunker.get()));
+                                    r += chunk.size();
                                     Log.i(folder.name + " chunk #" + c + " size=" + chunk.size());
 
                                     StringBuilder sb = new StringBuilder();
@@ -4164,9 +4709,12 @@ class Core {
                                             sb.append(range.first).append(':').append(range.second);
                                     }
                                     String command = "UID FETCH " + sb + " (UID FLAGS)";
+                                    long start = SystemClock.elapsedRealtime();
                                     Response[] responses = protocol.command(command, null);
 
                                     if (responses.length > 0 && responses[responses.length - 1].isOK()) {
+                                        chunker.success(chunk.size(), SystemClock.elapsedRealtime() - start, 0);
+
                                         for (Response response : responses)
                                             if (response instanceof FetchResponse) {
                                                 FetchResponse fr = (FetchResponse) response;
@@ -4234,12 +4782,10 @@ class Core {
                                             } else if (response.isBAD()) {
                                                 Log.e("UID FETCH " + response);
                                                 // BAD Error in IMAP command UID FETCH: Too long argument (n.nnn + n.nnn + n.nnn secs).
-                                                if (response.toString().contains("Too long argument")) {
-                                                    chunk_size = chunk_size / 2;
-                                                    if (chunk_size > 0)
-                                                        prefs.edit().putInt("chunk_size", chunk_size).apply();
-                                                }
-                                                throw new BadCommandException(response);
+                                                BadCommandException bad = new BadCommandException(response);
+                                                if (response.toString().contains("Too long argument"))
+                                                    chunker.failure(bad);
+                                                throw bad;
                                             }
                                         throw new ProtocolException("UID FETCH failed");
                                     }
@@ -4258,115 +4804,18 @@ class Core {
 
                     // Delete local messages not at remote
                     Log.i(folder.name + " delete=" + uids.size());
-                    for (Long uid : uids) {
+                    for (long uid : uids.toArray()) {
                         int count = db.message().deleteMessage(folder.id, uid);
                         Log.i(folder.name + " delete local uid=" + uid + " count=" + count);
                     }
 
-                    List<EntityRule> rules = db.rule().getEnabledRules(folder.id, false);
-
-                    fp.add(FetchProfile.Item.ENVELOPE);
-                    //fp.add(FetchProfile.Item.FLAGS);
-                    fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
-                    //fp.add(UIDFolder.FetchProfileItem.UID);
-                    fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-                    //fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
-                    fp.add(FetchProfile.Item.SIZE);
-                    fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
-                    if (account.isGmail())
-                        fp.add(GmailFolder.FetchProfileItem.THRID);
-
-                    // Add/update local messages
-                    DutyCycle dc = new DutyCycle(account.name + " sync");
-                    Log.i(folder.name + " add=" + imessages.length);
-                    for (int i = imessages.length - 1; i >= 0; i -= SYNC_BATCH_SIZE) {
-                        state.ensureRunning("Sync/IMAP/sync/fetch");
-
-                        int from = Math.max(0, i - SYNC_BATCH_SIZE + 1);
-                        Message[] isub = Arrays.copyOfRange(imessages, from, i + 1);
-
-                        // Full fetch new/changed messages only
-                        List<Message> full = new ArrayList<>();
-                        for (Message imessage : isub) {
-                            long uid = ifolder.getUID(imessage); // already fetched
-                            EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-                            if (message == null)
-                                full.add(imessage);
-                        }
-                        if (full.size() > 0) {
-                            long headers = SystemClock.elapsedRealtime();
-                            ifolder.fetch(full.toArray(new Message[0]), fp);
-                            stats.headers += full.size();
-                            stats.headers_ms += (SystemClock.elapsedRealtime() - headers);
-                            Log.i(folder.name + " fetched headers=" + full.size() + " " + stats.headers_ms + " ms");
-                        }
-
-                        int free = Log.getFreeMemMb();
-                        Map<String, String> crumb = new HashMap<>();
-                        crumb.put("account", account.id + ":" + account.protocol);
-                        crumb.put("folder", folder.id + ":" + folder.type);
-                        crumb.put("start", Integer.toString(from));
-                        crumb.put("end", Integer.toString(i));
-                        crumb.put("partial", Boolean.toString(account.partial_fetch));
-                        Log.breadcrumb("sync", crumb);
-                        Log.i("Sync " + from + ".." + i + " free=" + free);
-
-                        for (int j = isub.length - 1; j >= 0; j--) {
-                            state.ensureRunning("Sync/IMAP/sync");
-
-                            boolean ok = false;
-                            try {
-                                dc.start();
-
-                                // Some providers erroneously return old messages
-                                if (full.contains(isub[j]))
-                                    try {
-                                        Date received = isub[j].getReceivedDate();
-                                        if (received == null || received.getTime() == 0)
-                                            received = isub[j].getSentDate();
-                                        boolean unseen = (sync_unseen && !isub[j].isSet(Flags.Flag.SEEN));
-                                        boolean flagged = (sync_flagged && isub[j].isSet(Flags.Flag.FLAGGED));
-                                        if (received != null && received.getTime() < keep_time && !unseen && !flagged) {
-                                            long uid = ifolder.getUID(isub[j]);
-                                            Log.i(folder.name + " Skipping old uid=" + uid + " date=" + received);
-                                            ids[from + j] = null;
-                                            continue;
-                                        }
-                                    } catch (Throwable ex) {
-                                        Log.w(ex);
-                                    }
-
-                                EntityMessage message = synchronizeMessage(
-                                        context,
-                                        account, folder,
-                                        istore, ifolder, (MimeMessage) isub[j],
-                                        false, download && initialize == 0,
-                                        rules, state, stats);
-                                ids[from + j] = (message == null || message.ui_hide ? null : message.id);
-                                if (message != null)
-                                    ok = true;
-                            } catch (MessageRemovedException ex) {
-                                Log.w(folder.name, ex);
-                            } catch (FolderClosedException ex) {
-                                throw ex;
-                            } catch (IOException ex) {
-                                if (ex.getCause() instanceof MessagingException) {
-                                    Log.w(folder.name, ex);
-                                    db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
-                                } else
-                                    throw ex;
-                            } catch (Throwable ex) {
-                                Log.e(folder.name, ex);
-                                db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
-                            } finally {
-                                // Free memory
-                                isub[j] = null;
-                                if (!ok)
-                                    modseq = null;
-                                dc.stop(state.getForeground(), from == 0 && j == 0);
-                            }
-                        }
-                    }
+                    if (!synchronizeMessages(context,
+                            account, folder,
+                            istore, ifolder,
+                            imessages, ids, fp,
+                            download && initialize == 0, keep_time, sync_unseen, sync_flagged,
+                            state, stats))
+                        modseq = null;
                 }
 
                 // Delete not synchronized messages without uid
@@ -4415,47 +4864,116 @@ class Core {
 
                 // Download messages/attachments
                 DutyCycle dc = new DutyCycle(account.name + " download");
-                Log.i(folder.name + " download=" + imessages.length);
-                for (int i = imessages.length - 1; i >= 0; i -= DOWNLOAD_BATCH_SIZE) {
-                    state.ensureRunning("Sync/IMAP/download/fetch");
-
-                    int from = Math.max(0, i - DOWNLOAD_BATCH_SIZE + 1);
-                    Message[] isub = Arrays.copyOfRange(imessages, from, i + 1);
-                    Arrays.fill(imessages, from, i + 1, null);
-                    // Fetch on demand
-
-                    int free = Log.getFreeMemMb();
-                    Map<String, String> crumb = new HashMap<>();
-                    crumb.put("account", account.id + ":" + account.protocol);
-                    crumb.put("folder", folder.id + ":" + folder.type);
-                    crumb.put("start", Integer.toString(from));
-                    crumb.put("end", Integer.toString(i));
-                    crumb.put("partial", Boolean.toString(account.partial_fetch));
-                    Log.breadcrumb("download", crumb);
-                    Log.i("Download " + from + ".." + i + " free=" + free);
+                BatchSize sizer = BatchSize.getDownload(context, account);
+                DownloadQueue queue = new DownloadQueue(ids.length, sizer);
+
+                // Extra connections take batches from the same queue
+                // Workers are reserved per account, because folders of an account are synchronized in parallel
+                int workers = acquireDownloadWorkers(context, account, ids.length, sizer.get());
+                List<Future<SyncStats>> futures = new ArrayList<>();
+                Log.i(folder.name + " download=" + ids.length + " batch=" + sizer.get() + " workers=" + workers);
+                try {
+                    if (workers > 0) {
+                        long[] remote;
+                        if (esearch == null) {
+                            remote = new long[imessages.length];
+                            for (int i = 0; i < imessages.length; i++)
+                                try {
+                                    remote[i] = (imessages[i] == null ? -1 : ifolder.getUID(imessages[i]));
+                                } catch (MessageRemovedException ex) {
+                                    remote[i] = -1;
+                                }
+                        } else
+                            remote = esearch;
 
-                    for (int j = isub.length - 1; j >= 0; j--) {
-                        state.ensureRunning("Sync/IMAP/download");
+                        final Long[] _ids = ids;
+                        for (int w = 0; w < workers; w++)
+                            futures.add(executorDownload.submit(new Callable<SyncStats>() {
+                                @Override
+                                public SyncStats call() throws Exception {
+                                    return downloadWorker(context, account, folder, istore,
+                                            remote, _ids, queue, sizer, state);
+                                }
+                            }));
+                    }
+
+                    int[] range;
+                    while ((range = queue.take(false)) != null) {
+                        state.ensureRunning("Sync/IMAP/download/fetch");
+
+                        int from = range[0];
+                        int i = range[1];
+                        long start = SystemClock.elapsedRealtime();
+                        long bytes = stats.content + stats.attachments;
+                        Throwable failure = null;
+                        Message[] isub;
+                        if (esearch == null) {
+                            isub = Arrays.copyOfRange(imessages, from, i + 1);
+                            Arrays.fill(imessages, from, i + 1, null);
+                        } else
+                            isub = ifolder.getMessagesByUID(Arrays.copyOfRange(esearch, from, i + 1));
+                        // Fetch on demand
+
+                        int free = Log.getFreeMemMb();
+                        Map<String, String> crumb = new HashMap<>();
+                        crumb.put("account", account.id + ":" + account.protocol);
+                        crumb.put("folder", folder.id + ":" + folder.type);
+                        crumb.put("start", Integer.toString(from));
+                        crumb.put("end", Integer.toString(i));
+                        crumb.put("partial", Boolean.toString(account.partial_fetch));
+                        Log.breadcrumb("download", crumb);
+                        Log.i("Download " + from + ".." + i + " free=" + free);
+
+                        for (int j = isub.length - 1; j >= 0; j--) {
+                            state.ensureRunning("Sync/IMAP/download");
+
+                            try {
+                                dc.start();
+                                if (ids[from + j] != null) {
+                                    long started = SystemClock.elapsedRealtime();
+                                    if (downloadMessage(
+                                            context,
+                                            account, folder,
+                                            istore, ifolder,
+                                            (MimeMessage) isub[j], ids[from + j],
+                                            state, stats))
+                                        stats.downloads++;
+                                    stats.download_ms += (SystemClock.elapsedRealtime() - started);
+                                }
+                            } catch (FolderClosedException ex) {
+                                sizer.failure(ex);
+                                throw ex;
+                            } catch (Throwable ex) {
+                                Log.e(folder.name, ex);
+                                // Errors of a single message are no reason for smaller batches
+                                if (ConnectionHelper.isIoError(ex))
+                                    failure = ex;
+                            } finally {
+                                // Free memory
+                                isub[j] = null;
+                                dc.stop(state.getForeground(), from == 0 && j == 0);
+                            }
+                        }
 
+                        if (failure == null)
+                            sizer.success(isub.length,
+                                    SystemClock.elapsedRealtime() - start,
+                                    stats.content + stats.attachments - bytes);
+                        else
+                            sizer.failure(failure);
+                    }
+                } finally {
+                    queue.stop();
+                    for (Future<SyncStats> future : futures)
                         try {
-                            dc.start();
-                            if (ids[from + j] != null)
-                                downloadMessage(
-                                        context,
-                                        account, folder,
-                                        istore, ifolder,
-                                        (MimeMessage) isub[j], ids[from + j],
-                                        state, stats);
-                        } catch (FolderClosedException ex) {
-                            throw ex;
+                            stats.add(future.get());
                         } catch (Throwable ex) {
-                            Log.e(folder.name, ex);
-                        } finally {
-                            // Free memory
-                            isub[j] = null;
-                            dc.stop(state.getForeground(), from == 0 && j == 0);
+                            Throwable cause = (ex instanceof ExecutionException ? ex.getCause() : ex);
+                            Log.w(folder.name, cause);
+                            if (ConnectionHelper.isMaxConnections(cause))
+                                reduceDownloadWorkers(context, account, workers);
                         }
-                    }
+                    releaseDownloadWorkers(account, workers);
                 }
             }
 
@@ -4471,7 +4989,7 @@ class Core {
                     operation.folder = folder.id;
                     operation.message = null;
                     operation.name = EntityOperation.SYNC;
-                    operation.args = jargs.toString();
+                    operation.setArgs(jargs);
                     operation.created = new Date().getTime();
                     operation.id = db.operation().insertOperation(operation);
                 }
@@ -4482,6 +5000,14 @@ class Core {
 
             stats.total = (SystemClock.elapsedRealtime() - search);
 
+            long[] now = TrafficStatsHelper.getTraffic(ifolder);
+            if (traffic != null && now != null) {
+                stats.sent += now[0] - traffic[0];
+                stats.received += now[1] - traffic[1];
+            }
+
+            SyncMetrics.record(account.name, folder.name, stats.getPhases(), stats.sent, stats.received);
+
             EntityLog.log(context, EntityLog.Type.Statistics,
                     account.name + "/" + folder.name + " sync stats " + stats);
         } finally {
@@ -4490,12 +5016,383 @@ class Core {
         }
     }
 
+    private static int acquireDownloadWorkers(Context context, EntityAccount account, int count, int batch) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean download_parallel = prefs.getBoolean("download_parallel", false);
+        if (!download_parallel || account.protocol != EntityAccount.TYPE_IMAP)
+            return 0;
+
+        // Lowered when the server refused connections
+        int max = prefs.getInt("download_workers." + account.id, MAX_DOWNLOAD_WORKERS);
+
+        synchronized (accountWorkers) {
+            Integer active = accountWorkers.get(account.id);
+            if (active == null)
+                active = 0;
+
+            // Not worth an extra connection for a few batches
+            int batches = (count + batch - 1) / batch;
+            int workers = Math.max(0, Math.min(max - active, batches - 2));
+            if (workers > 0)
+                accountWorkers.put(account.id, active + workers);
+            return workers;
+        }
+    }
+
+    private static void releaseDownloadWorkers(EntityAccount account, int workers) {
+        if (workers == 0)
+            return;
+
+        synchronized (accountWorkers) {
+            Integer active = accountWorkers.get(account.id);
+            int left = (active == null ? 0 : active - workers);
+            if (left > 0)
+                accountWorkers.put(account.id, left);
+            else
+                accountWorkers.remove(account.id);
+        }
+    }
+
+    private static void reduceDownloadWorkers(Context context, EntityAccount account, int workers) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int max = Math.max(0, Math.min(workers, prefs.getInt("download_workers." + account.id, MAX_DOWNLOAD_WORKERS)) - 1);
+        Log.w(account.name + " download workers=" + max);
+        prefs.edit().putInt("download_workers." + account.id, max).apply();
+    }
+
+    private static SyncStats downloadWorker(
+            Context context, EntityAccount account, EntityFolder folder,
+            IMAPStore istore, long[] uids, Long[] ids,
+            DownloadQueue queue, BatchSize sizer, State state) throws MessagingException, IOException {
+        SyncStats stats = new SyncStats();
+
+        // Opening another folder instance will use another connection
+        IMAPFolder ifolder = (IMAPFolder) istore.getFolder(folder.name);
+        long[] traffic = null;
+        try {
+            ifolder.open(Folder.READ_ONLY);
+            traffic = TrafficStatsHelper.getTraffic(ifolder);
+            Log.i(folder.name + " download worker started");
+
+            int[] range;
+            while ((range = queue.take(true)) != null) {
+                state.ensureRunning("Sync/IMAP/download/worker");
+
+                long start = SystemClock.elapsedRealtime();
+                long bytes = stats.content + stats.attachments;
+                Throwable failure = null;
+
+                List<Integer> index = new ArrayList<>();
+                for (int k = range[0]; k <= range[1]; k++)
+                    if (ids[k] != null && uids[k] >= 0)
+                        index.add(k);
+
+                long[] usub = new long[index.size()];
+                for (int k = 0; k < usub.length; k++)
+                    usub[k] = uids[index.get(k)];
+                Message[] isub = ifolder.getMessagesByUID(usub);
+
+                for (int j = isub.length - 1; j >= 0; j--) {
+                    state.ensureRunning("Sync/IMAP/download/worker");
+
+                    try {
+                        long started = SystemClock.elapsedRealtime();
+                        if (downloadMessage(
+                                context,
+                                account, folder,
+                                istore, ifolder,
+                                (MimeMessage) isub[j], ids[index.get(j)],
+                                state, stats))
+                            stats.downloads++;
+                        stats.download_ms += (SystemClock.elapsedRealtime() - started);
+                    } catch (FolderClosedException ex) {
+                        sizer.failure(ex);
+                        throw ex;
+                    } catch (Throwable ex) {
+                        Log.e(folder.name, ex);
+                        // Errors of a single message are no reason for smaller batches
+                        if (ConnectionHelper.isIoError(ex))
+                            failure = ex;
+                    } finally {
+                        // Free memory
+                        isub[j] = null;
+                    }
+                }
+
+                if (failure == null)
+                    sizer.success(range[1] - range[0] + 1,
+                            SystemClock.elapsedRealtime() - start,
+                            stats.content + stats.attachments - bytes);
+                else
+                    sizer.failure(failure);
+            }
+        } finally {
+            // Traffic of the extra connection is added to the folder statistics
+            long[] now = (traffic == null ? null : TrafficStatsHelper.getTraffic(ifolder));
+            if (now != null) {
+                stats.sent += now[0] - traffic[0];
+                stats.received += now[1] - traffic[1];
+            }
+            Log.i(folder.name + " download worker stopped " + stats);
+            if (ifolder.isOpen())
+                try {
+                    ifolder.close(false);
+                } catch (MessagingException ex) {
+                    Log.w(folder.name, ex);
+                }
+        }
+
+        return stats;
+    }
+
+    private static long[] esearch(IMAPFolder ifolder, SearchTerm term) throws MessagingException {
+        UIDSet[] sets = (UIDSet[]) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                try {
+                    return protocol.uidSearch(term);
+                } catch (SearchException ex) {
+                    throw new ProtocolException(ex.getMessage(), ex);
+                }
+            }
+        });
+
+        long[] uids = UIDSet.toArray(sets);
+        if (uids == null)
+            return new long[0];
+        Arrays.sort(uids);
+        return uids;
+    }
+
+    private static Message[] getMessages(IMAPFolder ifolder, long[] uids) throws MessagingException {
+        // Messages expunged in the meantime will be null
+        Message[] imessages = ifolder.getMessagesByUID(uids);
+        int count = 0;
+        for (Message imessage : imessages)
+            if (imessage != null)
+                imessages[count++] = imessage;
+        return (count == imessages.length ? imessages : Arrays.copyOf(imessages, count));
+    }
+
+    private static boolean synchronizeMessages(
+            Context context,
+            EntityAccount account, EntityFolder folder,
+            IMAPStore istore, IMAPFolder ifolder,
+            Message[] imessages, Long[] ids, FetchProfile fp,
+            boolean download, long keep_time, boolean sync_unseen, boolean sync_flagged,
+            State state, SyncStats stats) throws MessagingException, IOException {
+        DB db = DB.getInstance(context);
+        boolean synced = true;
+
+        List<EntityRule> rules = db.rule().getEnabledRules(folder.id, false);
+
+        fp.add(FetchProfile.Item.ENVELOPE);
+        //fp.add(FetchProfile.Item.FLAGS);
+        fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
+        //fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+        //fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
+        fp.add(FetchProfile.Item.SIZE);
+        fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+        if (account.isGmail())
+            fp.add(GmailFolder.FetchProfileItem.THRID);
+
+        // Add/update local messages
+        // The headers of the next batch are fetched while the current batch is being processed
+        DutyCycle dc = new DutyCycle(account.name + " sync");
+        BatchSize sizer = BatchSize.getSync(context, account);
+        Log.i(folder.name + " add=" + imessages.length + " batch=" + sizer.get());
+        Future<SyncBatch> prefetch = (imessages.length > 0
+                ? prefetchBatch(context, folder, ifolder, imessages, imessages.length - 1, fp, sizer, state)
+                : null);
+        try {
+            while (prefetch != null) {
+                state.ensureRunning("Sync/IMAP/sync/fetch");
+
+                SyncBatch batch = getBatch(prefetch);
+                stats.add(batch.stats);
+                int from = batch.from;
+                int i = batch.to;
+                Message[] isub = batch.imessages;
+                List<Message> full = batch.full;
+
+                prefetch = (from > 0
+                        ? prefetchBatch(context, folder, ifolder, imessages, from - 1, fp, sizer, state)
+                        : null);
+
+                // The previous batch could have changed local messages
+                batch.reload(context, folder);
+                if (full.size() > 0)
+                    batch.loadMessageIds(context, folder, full);
+
+                int free = Log.getFreeMemMb();
+                Map<String, String> crumb = new HashMap<>();
+                crumb.put("account", account.id + ":" + account.protocol);
+                crumb.put("folder", folder.id + ":" + folder.type);
+                crumb.put("start", Integer.toString(from));
+                crumb.put("end", Integer.toString(i));
+                crumb.put("partial", Boolean.toString(account.partial_fetch));
+                Log.breadcrumb("sync", crumb);
+                Log.i("Sync " + from + ".." + i + " free=" + free);
+
+                try {
+                    for (int j = isub.length - 1; j >= 0; j--) {
+                        state.ensureRunning("Sync/IMAP/sync");
+
+                        boolean ok = false;
+                        try {
+                            dc.start();
+
+                            // Some providers erroneously return old messages
+                            if (full.contains(isub[j]))
+                                try {
+                                    Date received = isub[j].getReceivedDate();
+                                    if (received == null || received.getTime() == 0)
+                                        received = isub[j].getSentDate();
+                                    boolean unseen = (sync_unseen && !isub[j].isSet(Flags.Flag.SEEN));
+                                    boolean flagged = (sync_flagged && isub[j].isSet(Flags.Flag.FLAGGED));
+                                    if (received != null && received.getTime() < keep_time && !unseen && !flagged) {
+                                        long uid = ifolder.getUID(isub[j]);
+                                        Log.i(folder.name + " Skipping old uid=" + uid + " date=" + received);
+                                        ids[from + j] = null;
+                                        continue;
+                                    }
+                                } catch (Throwable ex) {
+                                    Log.w(ex);
+                                }
+
+                            EntityMessage message = synchronizeMessage(
+                                    context,
+                                    account, folder,
+                                    istore, ifolder, (MimeMessage) isub[j],
+                                    false, download,
+                                    rules, state, stats, batch);
+                            ids[from + j] = (message == null || message.ui_hide ? null : message.id);
+                            if (message != null)
+                                ok = true;
+                        } catch (MessageRemovedException ex) {
+                            Log.w(folder.name, ex);
+                        } catch (FolderClosedException ex) {
+                            throw ex;
+                        } catch (IOException ex) {
+                            if (ex.getCause() instanceof MessagingException) {
+                                Log.w(folder.name, ex);
+                                db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
+                            } else
+                                throw ex;
+                        } catch (Throwable ex) {
+                            Log.e(folder.name, ex);
+                            db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
+                        } finally {
+                            // Free memory
+                            isub[j] = null;
+                            if (!ok)
+                                synced = false;
+                            dc.stop(state.getForeground(), from == 0 && j == 0);
+                        }
+                    }
+                } finally {
+                    // Thread merges of the batch in one transaction
+                    batch.threads.commit(context);
+                }
+            }
+        } finally {
+            if (prefetch != null)
+                prefetch.cancel(true);
+        }
+
+        return synced;
+    }
+
+    private static Future<SyncBatch> prefetchBatch(
+            Context context, EntityFolder folder, IMAPFolder ifolder,
+            Message[] imessages, int to, FetchProfile fp, BatchSize sizer, State state) {
+        // Statistics are kept per batch and added by the sync thread
+        return executorPrefetch.submit(new Callable<SyncBatch>() {
+            @Override
+            public SyncBatch call() throws Exception {
+                state.ensureRunning("Sync/IMAP/sync/prefetch");
+
+                int from = Math.max(0, to - sizer.get() + 1);
+                Message[] isub = Arrays.copyOfRange(imessages, from, to + 1);
+
+                // Resolve local messages of the batch in one query
+                SyncBatch batch = new SyncBatch(context, folder, ifolder, isub);
+                batch.from = from;
+                batch.to = to;
+                batch.imessages = isub;
+
+                // Full fetch new/changed messages only
+                for (Message imessage : isub) {
+                    long uid = ifolder.getUID(imessage); // already fetched
+                    EntityMessage message = batch.getMessageByUid(uid);
+                    if (message == null)
+                        batch.full.add(imessage);
+                }
+                if (batch.full.size() > 0) {
+                    if (Thread.currentThread().isInterrupted())
+                        throw new OperationCanceledException("Sync/IMAP/sync/prefetch");
+                    state.ensureRunning("Sync/IMAP/sync/prefetch");
+
+                    long headers = SystemClock.elapsedRealtime();
+                    long[] traffic = TrafficStatsHelper.getTraffic(ifolder);
+                    try {
+                        ifolder.fetch(batch.full.toArray(new Message[0]), fp);
+                    } catch (Throwable ex) {
+                        sizer.failure(ex);
+                        throw ex;
+                    }
+                    long ms = (SystemClock.elapsedRealtime() - headers);
+                    long[] now = TrafficStatsHelper.getTraffic(ifolder);
+                    sizer.success(batch.full.size(), ms,
+                            traffic == null || now == null ? 0 : now[1] - traffic[1]);
+                    batch.stats.headers += batch.full.size();
+                    batch.stats.headers_ms += ms;
+                    Log.i(folder.name + " fetched headers=" + batch.full.size() + " " + ms + " ms");
+                }
+
+                return batch;
+            }
+        });
+    }
+
+    private static SyncBatch getBatch(Future<SyncBatch> future) throws MessagingException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new OperationCanceledExceptionEx("Sync/IMAP/sync/prefetch", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof MessagingException)
+                throw (MessagingException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new MessagingException("Prefetch", ex);
+        }
+    }
+
     static EntityMessage synchronizeMessage(
             Context context,
             EntityAccount account, EntityFolder folder,
             IMAPStore istore, IMAPFolder ifolder, MimeMessage imessage,
             boolean browsed, boolean download,
             List<EntityRule> rules, State state, SyncStats stats) throws MessagingException, IOException {
+        return synchronizeMessage(context,
+                account, folder,
+                istore, ifolder, imessage,
+                browsed, download,
+                rules, state, stats, null);
+    }
+
+    private static EntityMessage synchronizeMessage(
+            Context context,
+            EntityAccount account, EntityFolder folder,
+            IMAPStore istore, IMAPFolder ifolder, MimeMessage imessage,
+            boolean browsed, boolean download,
+            List<EntityRule> rules, State state, SyncStats stats,
+            SyncBatch batch) throws MessagingException, IOException {
         DB db = DB.getInstance(context);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean download_headers = prefs.getBoolean("download_headers", false);
@@ -4520,7 +5417,7 @@ class Core {
 
         if (imessage.isSet(Flags.Flag.DELETED)) {
             Log.w(folder.name + " deleted uid=" + uid);
-            if (expunge(context, ifolder, Arrays.asList(imessage)))
+            if (expunge(context, account, ifolder, Arrays.asList(imessage)))
                 throw new MessageRemovedException("Deleted");
         }
 
@@ -4538,7 +5435,9 @@ class Core {
         boolean syncSimilar = false;
 
         // Find message by uid (fast, no headers required)
-        EntityMessage message = db.message().getMessageByUid(folder.id, uid);
+        EntityMessage message = (batch != null && batch.hasUid(uid)
+                ? batch.getMessageByUid(uid)
+                : db.message().getMessageByUid(folder.id, uid));
 
         // Find message by Message-ID (slow, headers required)
         // - messages in inbox have same id as message sent to self
@@ -4550,7 +5449,9 @@ class Core {
         if (message == null) {
             String msgid = helper.getMessageID();
             Log.i(folder.name + " searching for " + msgid);
-            List<EntityMessage> dups = db.message().getMessagesByMsgId(folder.account, msgid);
+            List<EntityMessage> dups = (batch == null ? null : batch.getMessagesByMsgId(msgid));
+            if (dups == null)
+                dups = db.message().getMessagesByMsgId(folder.account, msgid);
             if (dups.size() == 0 &&
                     account.isOutlook() &&
                     EntityFolder.SENT.equals(folder.type)) {
@@ -4562,7 +5463,9 @@ class Core {
                 }
             }
             for (EntityMessage dup : dups) {
-                EntityFolder dfolder = db.folder().getFolder(dup.folder);
+                EntityFolder dfolder = (batch == null
+                        ? db.folder().getFolder(dup.folder)
+                        : batch.getFolder(context, dup.folder));
                 Log.i(folder.name + " found as id=" + dup.id + "/" + dup.uid +
                         " folder=" + dfolder.type + ":" + dup.folder + "/" + folder.type + ":" + folder.id +
                         " msgid=" + dup.msgid + " thread=" + dup.thread);
@@ -4571,7 +5474,8 @@ class Core {
                     have = true;
 
                 if (dup.folder.equals(folder.id)) {
-                    String thread = helper.getThreadId(context, account.id, folder.id, uid, dup.received);
+                    String thread = helper.getThreadId(context, account.id, folder.id, uid, dup.received,
+                            batch == null ? null : batch.threads);
                     Log.i(folder.name + " found as id=" + dup.id +
                             " uid=" + dup.uid + "/" + uid +
                             " msgid=" + msgid + " thread=" + thread);
@@ -4605,7 +5509,7 @@ class Core {
                                     Log.w(folder.name + " late draft" +
                                             " host=" + account.host + " uid=" + dup.uid + "<" + uid);
                                     existing.setFlag(Flags.Flag.DELETED, true);
-                                    expunge(context, ifolder, Arrays.asList(existing));
+                                    expunge(context, account, ifolder, Arrays.asList(existing));
                                     db.message().setMessageUiHide(dup.id, true);
                                 }
                             } else if (dup.uid > uid) {
@@ -4613,7 +5517,7 @@ class Core {
                                     Log.w(folder.name + " late draft" +
                                             " host=" + account.host + " uid=" + dup.uid + ">" + uid);
                                     imessage.setFlag(Flags.Flag.DELETED, true);
-                                    expunge(context, ifolder, Arrays.asList(imessage));
+                                    expunge(context, account, ifolder, Arrays.asList(imessage));
                                     return null;
                                 }
                             }
@@ -4636,6 +5540,7 @@ class Core {
         }
 
         if (message == null) {
+            long parse = SystemClock.elapsedRealtime();
             Long sent = helper.getSent();
 
             Long received;
@@ -4677,7 +5582,8 @@ class Core {
             message.inreplyto = helper.getInReplyTo();
             // Local address contains control or whitespace in string ``mailing list someone@example.org''
             message.deliveredto = helper.getDeliveredTo();
-            message.thread = helper.getThreadId(context, account.id, folder.id, uid, received);
+            message.thread = helper.getThreadId(context, account.id, folder.id, uid, received,
+                    batch == null ? null : batch.threads);
             if (BuildConfig.DEBUG && message.thread.startsWith("outlook:"))
                 message.warning = message.thread;
             message.priority = helper.getPriority();
@@ -4898,6 +5804,11 @@ class Core {
                     Log.w(ex);
                 }
 
+            long commit = SystemClock.elapsedRealtime();
+            long ruled = 0;
+            if (stats != null)
+                stats.parse_ms += (commit - parse);
+
             try {
                 db.beginTransaction();
 
@@ -4914,7 +5825,9 @@ class Core {
                     attachment.id = db.attachment().insertAttachment(attachment);
                 }
 
+                long run = SystemClock.elapsedRealtime();
                 runRules(context, headers, body, account, folder, message, rules);
+                ruled = (SystemClock.elapsedRealtime() - run);
 
                 if (message.blocklist != null && message.blocklist) {
                     boolean use_blocklist = prefs.getBoolean("use_blocklist", false);
@@ -4950,8 +5863,15 @@ class Core {
                 return null;
             } finally {
                 db.endTransaction();
+                if (stats != null) {
+                    stats.rules_ms += ruled;
+                    stats.db_ms += (SystemClock.elapsedRealtime() - commit - ruled);
+                }
             }
 
+            if (batch != null)
+                batch.added(message);
+
             try {
                 EntityContact.received(context, account, folder, message);
 
@@ -5024,9 +5944,15 @@ class Core {
                 syncSimilar = true;
             }
 
+            // Bulk flag changes are pending
+            boolean storing = (batch == null
+                    ? db.operation().getOperationCount(folder.id, EntityOperation.STORE) > 0
+                    : batch.storing);
+
             if ((!message.seen.equals(seen) ||
                     (!folder.read_only && !message.ui_seen.equals(seen))) &&
-                    db.operation().getOperationCount(folder.id, message.id, EntityOperation.SEEN) == 0) {
+                    db.operation().getOperationCount(folder.id, message.id, EntityOperation.SEEN) == 0 &&
+                    !storing) {
                 update = true;
                 message.seen = seen;
                 message.ui_seen = seen;
@@ -5048,7 +5974,8 @@ class Core {
 
             if ((!message.flagged.equals(flagged) ||
                     (!folder.read_only && !message.ui_flagged.equals(flagged))) &&
-                    db.operation().getOperationCount(folder.id, message.id, EntityOperation.FLAG) == 0) {
+                    db.operation().getOperationCount(folder.id, message.id, EntityOperation.FLAG) == 0 &&
+                    !storing) {
                 update = true;
                 message.flagged = flagged;
                 message.ui_flagged = flagged;
@@ -5110,7 +6037,8 @@ class Core {
             if (message.ui_hide &&
                     (message.ui_busy == null || message.ui_busy < new Date().getTime()) &&
                     db.operation().getOperationCount(folder.id, message.id) == 0 &&
-                    db.operation().getOperationCount(folder.id, EntityOperation.PURGE) == 0) {
+                    db.operation().getOperationCount(folder.id, EntityOperation.PURGE) == 0 &&
+                    !(batch == null ? isHiding(context, folder) : batch.hiding)) {
                 update = true;
                 message.ui_hide = false;
                 Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " unhide");
@@ -5140,6 +6068,8 @@ class Core {
                 List<Header> headers = (needsHeaders ? helper.getAllHeaders() : null);
                 String body = (needsBody ? helper.getMessageParts().getHtml(context, download_plain) : null);
 
+                long commit = SystemClock.elapsedRealtime();
+                long ruled = 0;
                 try {
                     db.beginTransaction();
 
@@ -5151,12 +6081,19 @@ class Core {
 
                     db.message().updateMessage(message);
 
-                    if (process)
+                    if (process) {
+                        long run = SystemClock.elapsedRealtime();
                         runRules(context, headers, body, account, folder, message, rules);
+                        ruled = (SystemClock.elapsedRealtime() - run);
+                    }
 
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
+                    if (stats != null) {
+                        stats.rules_ms += ruled;
+                        stats.db_ms += (SystemClock.elapsedRealtime() - commit - ruled);
+                    }
                 }
             }
 
@@ -5212,24 +6149,18 @@ class Core {
         return message;
     }
 
-    private static boolean expunge(Context context, IMAPFolder ifolder, List<Message> messages) {
+    private static boolean expunge(Context context, EntityAccount account, IMAPFolder ifolder, List<Message> messages) {
         if (messages.size() == 0)
             return false;
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean perform_expunge = prefs.getBoolean("perform_expunge", true);
-        boolean uid_expunge = prefs.getBoolean("uid_expunge", false);
 
         if (!perform_expunge)
             return false;
 
         try {
-            if (uid_expunge)
-                uid_expunge = MessageHelper.hasCapability(ifolder, "UIDPLUS");
-            if (MessageHelper.hasCapability(ifolder, "X-UIDONLY"))
-                uid_expunge = true;
-
-            if (uid_expunge) {
+            if (isUidExpunge(context, ifolder)) {
                 FetchProfile fp = new FetchProfile();
                 fp.add(UIDFolder.FetchProfileItem.UID);
                 ifolder.fetch(messages.toArray(new Message[0]), fp);
@@ -5246,7 +6177,7 @@ class Core {
                     }
 
                 Log.i(ifolder.getName() + " expunging " + TextUtils.join(",", uids));
-                uidExpunge(context, ifolder, uids);
+                uidExpunge(context, account, ifolder, uids);
                 Log.i(ifolder.getName() + " expunged " + TextUtils.join(",", uids));
             } else {
                 Log.i(ifolder.getName() + " expunging all");
@@ -5262,15 +6193,24 @@ class Core {
         }
     }
 
-    private static void uidExpunge(Context context, IMAPFolder ifolder, List<Long> uids) throws MessagingException {
+    private static boolean isUidExpunge(Context context, IMAPFolder ifolder) throws MessagingException {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        int chunk_size = prefs.getInt("chunk_size", DEFAULT_CHUNK_SIZE);
+        boolean uid_expunge = prefs.getBoolean("uid_expunge", false);
 
+        if (uid_expunge)
+            uid_expunge = MessageHelper.hasCapability(ifolder, "UIDPLUS");
+        if (MessageHelper.hasCapability(ifolder, "X-UIDONLY"))
+            uid_expunge = true;
+
+        return uid_expunge;
+    }
+
+    private static void uidExpunge(Context context, EntityAccount account, IMAPFolder ifolder, List<Long> uids) throws MessagingException {
         ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
             @Override
             public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
                 // https://datatracker.ietf.org/doc/html/rfc4315#section-2.1
-                for (List<Long> list : Helper.chunkList(uids, chunk_size))
+                for (List<Long> list : Helper.chunkList(uids, BatchSize.getChunk(context, account).get()))
                     protocol.uidexpunge(UIDSet.createUIDSets(Helper.toLongArray(list)));
                 return null;
             }
@@ -5454,6 +6394,11 @@ class Core {
 
         List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
 
+        boolean raw = (download_eml &&
+                (message.raw == null || !message.raw) &&
+                ((!download_limited && state.getNetworkState().isUnmetered()) ||
+                        (message.total != null && message.total < maxSize)));
+
         boolean fetch = false;
         if (!message.content)
             if ((!download_limited && state.getNetworkState().isUnmetered()) ||
@@ -5489,56 +6434,89 @@ class Core {
             //}
             //ifolder.fetch(new Message[]{imessage}, fp);
 
-            MessageHelper helper = new MessageHelper(imessage, context);
-            MessageHelper.MessageParts parts = helper.getMessageParts();
+            // The whole message is fetched within the total size limit,
+            // so the body and attachment size limits don't apply anymore
+            boolean parsed = raw;
+            SharedFileInputStream sis = null;
+            try {
+                MessageHelper helper;
+                if (parsed) {
+                    // Fetch the message once and extract the body and attachments locally
+                    File file = message.getRawFile(context);
+                    try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+                        imessage.writeTo(os);
+                    }
 
-            if (!message.content) {
-                if ((!download_limited && state.getNetworkState().isUnmetered()) ||
-                        (message.size != null && message.size < maxSize)) {
-                    String body = parts.getHtml(context);
-                    File file = message.getFile(context);
-                    Helper.writeText(file, body);
-                    String text = HtmlHelper.getFullText(body, true);
-                    message.preview = HtmlHelper.getPreview(text);
-                    message.language = HtmlHelper.getLanguage(context, message.subject, text);
-                    db.message().setMessageContent(message.id,
-                            true,
-                            message.language,
-                            parts.isPlainOnly(),
-                            message.preview,
-                            parts.getWarnings(message.warning));
-                    MessageClassifier.classify(message, folder, true, context);
-
-                    if (stats != null && body != null)
-                        stats.content += body.length();
-                    Log.i(folder.name + " downloaded message id=" + message.id +
-                            " size=" + message.size + "/" + (body == null ? null : body.length()));
-
-                    if (TextUtils.isEmpty(body) && parts.hasBody())
-                        reportEmptyMessage(context, state, account, istore);
+                    message.raw = true;
+                    db.message().setMessageRaw(message.id, message.raw);
+                    raw = false;
+
+                    Properties props = MessageHelper.getSessionProperties(true);
+                    Session isession = Session.getInstance(props, null);
+                    sis = new SharedFileInputStream(file);
+                    helper = new MessageHelper(new MimeMessage(isession, sis), context);
+                    Log.i(folder.name + " parsing raw message id=" + message.id + " size=" + file.length());
+                } else
+                    helper = new MessageHelper(imessage, context);
+                MessageHelper.MessageParts parts = helper.getMessageParts();
+
+                if (!message.content) {
+                    if (parsed ||
+                            (!download_limited && state.getNetworkState().isUnmetered()) ||
+                            (message.size != null && message.size < maxSize)) {
+                        // Large bodies are streamed into the file, the body is an excerpt then
+                        File file = message.getFile(context);
+                        String body = parts.writeHtml(context, file);
+                        boolean streamed = (body != null);
+                        if (!streamed) {
+                            body = parts.getHtml(context);
+                            Helper.writeText(file, body);
+                        }
+                        String text = HtmlHelper.getFullText(body, true);
+                        message.preview = HtmlHelper.getPreview(text);
+                        message.language = HtmlHelper.getLanguage(context, message.subject, text);
+                        db.message().setMessageContent(message.id,
+                                true,
+                                message.language,
+                                parts.isPlainOnly(),
+                                message.preview,
+                                parts.getWarnings(message.warning));
+                        MessageClassifier.classify(message, folder, true, context);
+
+                        long length = (streamed ? file.length() : body == null ? 0 : body.length());
+                        if (stats != null)
+                            stats.content += length;
+                        Log.i(folder.name + " downloaded message id=" + message.id +
+                                " size=" + message.size + "/" + (body == null ? null : length) +
+                                " streamed=" + streamed);
+
+                        if (TextUtils.isEmpty(body) && parts.hasBody())
+                            reportEmptyMessage(context, state, account, istore);
+                    }
                 }
-            }
 
-            for (EntityAttachment attachment : attachments)
-                if (!attachment.available &&
-                        attachment.subsequence == null &&
-                        TextUtils.isEmpty(attachment.error))
-                    if ((!download_limited && state.getNetworkState().isUnmetered()) ||
-                            (attachment.size != null && attachment.size < maxSize))
-                        try {
-                            parts.downloadAttachment(context, attachment, folder);
-                            if (stats != null && attachment.size != null)
-                                stats.attachments += attachment.size;
-                        } catch (Throwable ex) {
-                            Log.e(folder.name, ex);
-                            db.attachment().setError(attachment.id, Log.formatThrowable(ex, false));
-                        }
+                for (EntityAttachment attachment : attachments)
+                    if (!attachment.available &&
+                            attachment.subsequence == null &&
+                            TextUtils.isEmpty(attachment.error))
+                        if (parsed ||
+                                (!download_limited && state.getNetworkState().isUnmetered()) ||
+                                (attachment.size != null && attachment.size < maxSize))
+                            try {
+                                parts.downloadAttachment(context, attachment, folder, parsed);
+                                if (stats != null && attachment.size != null)
+                                    stats.attachments += attachment.size;
+                            } catch (Throwable ex) {
+                                Log.e(folder.name, ex);
+                                db.attachment().setError(attachment.id, Log.formatThrowable(ex, false));
+                            }
+            } finally {
+                if (sis != null)
+                    sis.close();
+            }
         }
 
-        if (download_eml &&
-                (message.raw == null || !message.raw) &&
-                ((!download_limited && state.getNetworkState().isUnmetered()) ||
-                        (message.total != null && message.total < maxSize))) {
+        if (raw) {
             File file = message.getRawFile(context);
             try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
                 imessage.writeTo(os);
@@ -5871,6 +6849,148 @@ class Core {
         }
     }
 
+    private static class DownloadQueue {
+        private int next;
+        private boolean stopped = false;
+        private final BatchSize sizer;
+
+        DownloadQueue(int count, BatchSize sizer) {
+            this.next = count - 1;
+            this.sizer = sizer;
+        }
+
+        // Newest messages first
+        synchronized int[] take(boolean worker) {
+            if (stopped || next < 0)
+                return null;
+            // Memory budget for extra connections
+            if (worker && Log.getFreeMemMb() < DOWNLOAD_WORKER_MIN_FREE)
+                return null;
+            int to = next;
+            int from = Math.max(0, to - sizer.get() + 1);
+            next = from - 1;
+            return new int[]{from, to};
+        }
+
+        synchronized void stop() {
+            stopped = true;
+        }
+    }
+
+    private static boolean isHiding(Context context, EntityFolder folder) {
+        // Bulk moves and deletes hide messages without a message operation
+        DB db = DB.getInstance(context);
+        return (db.operation().getOperationCount(folder.id, EntityOperation.RELOCATE) > 0 ||
+                db.operation().getOperationCount(folder.id, EntityOperation.ERASE) > 0);
+    }
+
+    private static class SyncBatch {
+        int from;
+        int to;
+        Message[] imessages;
+        final List<Message> full = new ArrayList<>();
+        final SyncStats stats = new SyncStats();
+
+        private final List<Long> list = new ArrayList<>();
+        private final Map<Long, EntityMessage> uids = new HashMap<>();
+        private final Map<String, List<EntityMessage>> msgids = new HashMap<>();
+        private final Map<Long, EntityFolder> folders = new HashMap<>();
+        final ThreadIndex threads;
+        boolean storing;
+        boolean hiding;
+
+        SyncBatch(Context context, EntityFolder folder, IMAPFolder ifolder, Message[] imessages) throws MessagingException {
+            this.threads = new ThreadIndex(folder.account);
+            for (Message imessage : imessages)
+                try {
+                    list.add(ifolder.getUID(imessage)); // already fetched
+                } catch (MessageRemovedException ex) {
+                    Log.w(folder.name, ex);
+                }
+
+            reload(context, folder);
+        }
+
+        SyncBatch(Context context, EntityFolder folder, long[] uids) {
+            this.threads = new ThreadIndex(folder.account);
+            for (long uid : uids)
+                list.add(uid);
+
+            reload(context, folder);
+        }
+
+        void reload(Context context, EntityFolder folder) {
+            uids.clear();
+            for (Long uid : list)
+                uids.put(uid, null);
+
+            DB db = DB.getInstance(context);
+            if (list.size() > 0)
+                for (EntityMessage message : db.message().getMessagesByUids(folder.id, list))
+                    uids.put(message.uid, message);
+
+            storing = (db.operation().getOperationCount(folder.id, EntityOperation.STORE) > 0);
+            hiding = isHiding(context, folder);
+        }
+
+        void loadMessageIds(Context context, EntityFolder folder, List<Message> imessages) {
+            List<String> list = new ArrayList<>();
+            Set<String> refs = new LinkedHashSet<>();
+            for (Message imessage : imessages)
+                try {
+                    MessageHelper helper = new MessageHelper((MimeMessage) imessage, context);
+                    String msgid = helper.getMessageID();
+                    if (!TextUtils.isEmpty(msgid) && !msgids.containsKey(msgid)) {
+                        list.add(msgid);
+                        msgids.put(msgid, new ArrayList<>());
+                    }
+
+                    // Thread infos for the whole batch at once
+                    refs.add(msgid);
+                    refs.add(helper.getInReplyTo());
+                    refs.addAll(Arrays.asList(helper.getReferences()));
+                } catch (Throwable ex) {
+                    Log.w(folder.name, ex);
+                }
+
+            if (list.size() > 0) {
+                DB db = DB.getInstance(context);
+                for (EntityMessage message : db.message().getMessagesByMsgIds(folder.account, list))
+                    msgids.get(message.msgid).add(message);
+            }
+
+            threads.load(context, refs);
+        }
+
+        boolean hasUid(long uid) {
+            return uids.containsKey(uid);
+        }
+
+        EntityMessage getMessageByUid(long uid) {
+            return uids.get(uid);
+        }
+
+        List<EntityMessage> getMessagesByMsgId(String msgid) {
+            // null: not resolved
+            List<EntityMessage> result = msgids.get(msgid);
+            return (result == null ? null : new ArrayList<>(result));
+        }
+
+        EntityFolder getFolder(Context context, long id) {
+            if (!folders.containsKey(id))
+                folders.put(id, DB.getInstance(context).folder().getFolder(id));
+            return folders.get(id);
+        }
+
+        void added(EntityMessage message) {
+            threads.added(message);
+            if (message.uid != null)
+                uids.put(message.uid, message);
+            if (message.msgid != null && msgids.containsKey(message.msgid))
+                msgids.get(message.msgid).add(message);
+        }
+    }
+
     private static class SyncStats {
         long search_ms;
         int flags;
@@ -5879,8 +6999,15 @@ class Core {
         long uids_ms;
         int headers;
         long headers_ms;
+        long parse_ms;
+        long rules_ms;
+        long db_ms;
+        int downloads;
+        long download_ms;
         long content;
         long attachments;
+        long sent;
+        long received;
         long total;
 
         boolean isEmpty() {
@@ -5891,19 +7018,48 @@ class Core {
                     uids_ms == 0 &&
                     headers == 0 &&
                     headers_ms == 0 &&
+                    parse_ms == 0 &&
+                    rules_ms == 0 &&
+                    db_ms == 0 &&
+                    downloads == 0 &&
+                    download_ms == 0 &&
                     content == 0 &&
                     attachments == 0 &&
                     total == 0);
         }
 
+        void add(SyncStats other) {
+            headers += other.headers;
+            headers_ms += other.headers_ms;
+            downloads += other.downloads;
+            download_ms += other.download_ms;
+            content += other.content;
+            attachments += other.attachments;
+            sent += other.sent;
+            received += other.received;
+        }
+
+        long[] getPhases() {
+            // Same order as SyncMetrics.PHASES
+            return new long[]{
+                    search_ms, flags_ms, uids_ms, headers_ms,
+                    parse_ms, rules_ms, db_ms, download_ms, total};
+        }
+
         @Override
         public String toString() {
             return "search=" + search_ms + " ms" +
                     " flags=" + flags + "/" + flags_ms + " ms" +
                     " uids=" + uids + "/" + uids_ms + " ms" +
                     " headers=" + headers + "/" + headers_ms + " ms" +
+                    " parse=" + parse_ms + " ms" +
+                    " rules=" + rules_ms + " ms" +
+                    " db=" + db_ms + " ms" +
+                    " downloads=" + downloads + "/" + download_ms + " ms" +
                     " content=" + Helper.humanReadableByteCount(content) +
                     " attachments=" + Helper.humanReadableByteCount(attachments) +
+                    " tx=" + Helper.humanReadableByteCount(sent) +
+                    " rx=" + Helper.humanReadableByteCount(received) +
                     " total=" + total + " ms";
         }
     }
@@ -26,7 +26,6 @@ import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
@@ -70,7 +69,7 @@ import javax.mail.internet.InternetAddress;
 // https://developer.android.com/topic/libraries/architecture/room.html
 
 @Database(
-        version = 299,
+        version = 302,
         entities = {
                 EntityIdentity.class,
                 EntityAccount.class,
@@ -83,7 +82,8 @@ import javax.mail.internet.InternetAddress;
                 EntityAnswer.class,
                 EntityRule.class,
                 EntitySearch.class,
-                EntityLog.class
+                EntityLog.class,
+                EntityThread.class
         },
         views = {
                 TupleAccountView.class,
@@ -292,6 +292,20 @@ public abstract class DB extends RoomDatabase {
         });
     }
 
+    static Map<String, long[]> getFolderScope(long folder, Long account) {
+        // Only modifications of the folder, its messages, rules and operations invalidate
+        Map<String, long[]> keys = new HashMap<>();
+        keys.put(EntityFolder.TABLE_NAME, new long[]{folder});
+        keys.put(EntityMessage.TABLE_NAME, new long[]{folder});
+        keys.put(EntityRule.TABLE_NAME, new long[]{folder});
+        keys.put(EntityOperation.TABLE_NAME, new long[]{folder});
+        if (account != null) {
+            keys.put(EntityAccount.TABLE_NAME, new long[]{account});
+            keys.put(EntityThread.TABLE_NAME, new long[]{account});
+        }
+        return keys;
+    }
+
     static void createEmergencyBackup(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean emergency_file = prefs.getBoolean("emergency_file", true);
@@ -399,6 +413,15 @@ public abstract class DB extends RoomDatabase {
 
             sInstance = migrate(sContext, getBuilder(sContext)).build();
 
+            // Keys of modified rows for scoped observers
+            InvalidationTracker tracker = sInstance.getInvalidationTracker();
+            tracker.setKeyColumn(EntityAccount.TABLE_NAME, "id");
+            tracker.setKeyColumn(EntityFolder.TABLE_NAME, "id");
+            tracker.setKeyColumn(EntityMessage.TABLE_NAME, "folder");
+            tracker.setKeyColumn(EntityThread.TABLE_NAME, "account");
+            tracker.setKeyColumn(EntityRule.TABLE_NAME, "folder");
+            tracker.setKeyColumn(EntityOperation.TABLE_NAME, "folder");
+
             Helper.getSerialExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
@@ -561,6 +584,7 @@ public abstract class DB extends RoomDatabase {
                                 dropTriggers(db);
 
                             createTriggers(db);
+                            createThreadTriggers(db);
 
                             ContentValues cv = new ContentValues();
                             cv.put("host", "imap.mnet-online.de");
@@ -684,6 +708,84 @@ public abstract class DB extends RoomDatabase {
                 " END");
     }
 
+    private static void dropThreadTriggers(@NonNull SupportSQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS `message_thread_insert`");
+        db.execSQL("DROP TRIGGER IF EXISTS `message_thread_update`");
+        db.execSQL("DROP TRIGGER IF EXISTS `message_thread_delete`");
+        db.execSQL("DROP TRIGGER IF EXISTS `folder_thread_update`");
+        db.execSQL("DROP TRIGGER IF EXISTS `identity_thread_update`");
+    }
+
+    private static void createThreadTriggers(@NonNull SupportSQLiteDatabase db) {
+        dropThreadTriggers(db);
+
+        // The thread table exists from version 301 only
+        try (Cursor cursor = db.query("SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'thread'")) {
+            if (!cursor.moveToNext())
+                return;
+        }
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_thread_insert" +
+                " AFTER INSERT ON message" +
+                " BEGIN" +
+                updateThread("NEW", null) +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_thread_update" +
+                " AFTER UPDATE OF account, folder, identity, thread, msgid, hash, `from`, `to`, avatar, sender" +
+                "  , total, attachments, ui_seen, ui_flagged, ui_hide, ui_snoozed" +
+                " ON message" +
+                " BEGIN" +
+                updateThread("OLD", "(OLD.account <> NEW.account OR OLD.thread IS NOT NEW.thread)") +
+                updateThread("NEW", null) +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_thread_delete" +
+                " AFTER DELETE ON message" +
+                " BEGIN" +
+                updateThread("OLD", null) +
+                " END");
+
+        // The drafts count depends on the folder type, the unknown count on the identity address
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS folder_thread_update" +
+                " AFTER UPDATE OF type ON folder" +
+                " WHEN OLD.type IS NOT NEW.type" +
+                " BEGIN" +
+                updateThreads("folder") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS identity_thread_update" +
+                " AFTER UPDATE OF email ON identity" +
+                " WHEN OLD.email IS NOT NEW.email" +
+                " BEGIN" +
+                updateThreads("identity") +
+                " END");
+    }
+
+    private static String updateThread(String row, String condition) {
+        // Recompute the summary of the thread of the old or new message row
+        String when = (condition == null ? "" : " AND " + condition);
+        return "  DELETE FROM thread" +
+                "  WHERE account = " + row + ".account AND thread = " + EntityThread.getKey(row) + when + ";" +
+                "  INSERT OR REPLACE INTO thread (" + EntityThread.COLUMNS + ")" +
+                "  " + EntityThread.SUMMARY +
+                "  AND m.account = " + row + ".account AND m.thread = " + row + ".thread" + when +
+                "  GROUP BY m.account, m.thread;" +
+                "  INSERT OR REPLACE INTO thread (" + EntityThread.COLUMNS + ")" +
+                "  " + EntityThread.SUMMARY +
+                "  AND m.id = " + row + ".id AND " + row + ".thread IS NULL" + when +
+                "  GROUP BY m.id;";
+    }
+
+    private static String updateThreads(String column) {
+        // Recompute the summaries of the threads with a message referencing the updated row
+        return "  INSERT OR REPLACE INTO thread (" + EntityThread.COLUMNS + ")" +
+                "  " + EntityThread.SUMMARY +
+                "  AND m.thread IN (SELECT thread FROM message WHERE " + column + " = NEW.id)" +
+                "  GROUP BY m.account, m.thread;" +
+                "  INSERT OR REPLACE INTO thread (" + EntityThread.COLUMNS + ")" +
+                "  " + EntityThread.SUMMARY +
+                "  AND m." + column + " = NEW.id AND m.thread IS NULL" +
+                "  GROUP BY m.id;";
+    }
+
     private static void logMigration(int startVersion, int endVersion) {
         Map<String, String> crumb = new HashMap<>();
         crumb.put("startVersion", Integer.toString(startVersion));
@@ -3039,6 +3141,56 @@ public abstract class DB extends RoomDatabase {
                         db.execSQL("UPDATE account SET keep_alive_noop = 1" +
                                 " WHERE host = 'imap.mail.me.com' AND pop = " + EntityAccount.TYPE_IMAP);
                     }
+                }).addMigrations(new Migration(299, 300) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `target` INTEGER");
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `uid` INTEGER");
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `flag` INTEGER");
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `options` INTEGER");
+                        db.execSQL("CREATE INDEX IF NOT EXISTS `index_operation_message_name` ON `operation` (`message`, `name`)");
+                        db.execSQL("CREATE INDEX IF NOT EXISTS `index_operation_folder_name` ON `operation` (`folder`, `name`)");
+                        db.execSQL("CREATE INDEX IF NOT EXISTS `index_operation_target` ON `operation` (`target`)");
+
+                        try (Cursor cursor = db.query("SELECT `id`, `name`, `args` FROM `operation`")) {
+                            while (cursor.moveToNext())
+                                try {
+                                    EntityOperation op = new EntityOperation();
+                                    op.id = cursor.getLong(0);
+                                    op.name = cursor.getString(1);
+                                    op.setArgs(new JSONArray(cursor.getString(2)));
+                                    db.execSQL(
+                                            "UPDATE `operation` SET `target` = ?, `uid` = ?, `flag` = ?, `options` = ? WHERE `id` = ?",
+                                            new Object[]{op.target, op.uid, op.flag, op.options, op.id});
+                                } catch (Throwable ex) {
+                                    Log.e(ex);
+                                }
+                        }
+                    }
+                }).addMigrations(new Migration(300, 301) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `thread`" +
+                                " (`account` INTEGER NOT NULL, `thread` TEXT NOT NULL" +
+                                ", `count` INTEGER NOT NULL, `unseen` INTEGER NOT NULL, `unflagged` INTEGER NOT NULL" +
+                                ", `snoozed` INTEGER NOT NULL, `drafts` INTEGER NOT NULL" +
+                                ", `visible` INTEGER NOT NULL, `visible_unseen` INTEGER NOT NULL" +
+                                ", `attachments` INTEGER NOT NULL, `total` INTEGER NOT NULL, `unknown` INTEGER NOT NULL" +
+                                ", `senders` TEXT, `recipients` TEXT" +
+                                ", PRIMARY KEY(`account`, `thread`))");
+                        db.execSQL("INSERT OR REPLACE INTO `thread` (" + EntityThread.COLUMNS + ")" +
+                                " " + EntityThread.SUMMARY +
+                                " GROUP BY m.account, " + EntityThread.getKey("m"));
+                        createThreadTriggers(db);
+                    }
+                }).addMigrations(new Migration(301, 302) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("CREATE INDEX IF NOT EXISTS `index_message_folder_received_id` ON `message` (`folder`, `received`, `id`)");
+                    }
                 }).addMigrations(new Migration(998, 999) {
                     @Override
                     public void migrate(@NonNull SupportSQLiteDatabase db) {
@@ -3235,27 +3387,36 @@ public abstract class DB extends RoomDatabase {
         public static String encodeAddresses(Address[] addresses) {
             if (addresses == null)
                 return null;
-            JSONArray jaddresses = new JSONArray();
-            for (Address address : addresses)
-                try {
-                    if (address instanceof InternetAddress) {
-                        String a = ((InternetAddress) address).getAddress();
-                        String p = ((InternetAddress) address).getPersonal();
-                        JSONObject jaddress = new JSONObject();
-                        if (a != null)
-                            jaddress.put("address", a);
-                        if (p != null)
-                            jaddress.put("personal", p);
-                        jaddresses.put(jaddress);
-                    } else {
-                        JSONObject jaddress = new JSONObject();
-                        jaddress.put("address", address.toString());
-                        jaddresses.put(jaddress);
-                    }
-                } catch (JSONException ex) {
-                    Log.e(ex);
+
+            // Same text as a JSONArray of JSONObjects, without building them
+            StringBuilder sb = new StringBuilder();
+            sb.append('[');
+            for (Address address : addresses) {
+                if (address == null)
+                    continue;
+                String a;
+                String p;
+                if (address instanceof InternetAddress) {
+                    a = ((InternetAddress) address).getAddress();
+                    p = ((InternetAddress) address).getPersonal();
+                } else {
+                    a = address.toString();
+                    p = null;
+                }
+                if (sb.length() > 1)
+                    sb.append(',');
+                sb.append('{');
+                if (a != null)
+                    sb.append("\"address\":").append(JSONObject.quote(a));
+                if (p != null) {
+                    if (a != null)
+                        sb.append(',');
+                    sb.append("\"personal\":").append(JSONObject.quote(p));
                 }
-            return jaddresses.toString();
+                sb.append('}');
+            }
+            sb.append(']');
+            return sb.toString();
         }
 
         @TypeConverter
@@ -3263,22 +3424,47 @@ public abstract class DB extends RoomDatabase {
             if (json == null)
                 return null;
 
+            // Split into address objects only, addresses are parsed on first use
+            // Nested arrays are concatenated thread senders/recipients,
+            // which can be truncated, so incomplete objects are skipped
+            // Objects without an address string are skipped too
             List<Address> result = new ArrayList<>();
-            try {
-                JSONArray jroot = new JSONArray(json);
-                for (int i = 0; i < jroot.length(); i++) {
-                    Object item = jroot.get(i);
-                    if (jroot.get(i) instanceof JSONArray)
-                        for (int j = 0; j < ((JSONArray) item).length(); j++)
-                            result.add(InternetAddressJson.from((JSONObject) ((JSONArray) item).get(j)));
-                    else
-                        result.add(InternetAddressJson.from((JSONObject) item));
-                }
-            } catch (JSONException ex) {
-                Log.i(ex);
-            } catch (Throwable ex) {
-                // Compose can store invalid addresses
-                Log.w(ex);
+            int depth = 0;
+            int start = -1;
+            int quote = -1;
+            boolean quoted = false;
+            boolean key = false; // last string is "address"
+            boolean value = false; // next value is the address
+            boolean address = false;
+            for (int i = 0; i < json.length(); i++) {
+                char kar = json.charAt(i);
+                if (quoted) {
+                    if (kar == '\\')
+                        i++;
+                    else if (kar == '"') {
+                        quoted = false;
+                        key = (depth == 1 && i == quote + 8 && json.startsWith("address", quote + 1));
+                    }
+                } else if (kar == '"') {
+                    if (value)
+                        address = true;
+                    value = false;
+                    quoted = true;
+                    quote = i;
+                } else if (kar == ':')
+                    value = key;
+                else if (kar == '{') {
+                    if (depth++ == 0) {
+                        start = i;
+                        key = false;
+                        value = false;
+                        address = false;
+                    }
+                } else if (kar == '}' && depth > 0) {
+                    if (--depth == 0 && address)
+                        result.add(InternetAddressJson.from(json.substring(start, i + 1)));
+                } else if (!Character.isWhitespace(kar))
+                    value = false;
             }
             return result.toArray(new Address[0]);
         }
@@ -197,6 +197,263 @@ public interface DaoMessage {
             boolean found,
             boolean debug);
 
+    // Threaded lists read the aggregates from the thread table
+    // The latest visible message of a thread in the list represents the thread
+    // Messages without a thread have a summary of their own, see EntityThread.getKey
+
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query("SELECT message.*" +
+            ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
+            ", account.notify AS accountNotify, account.summary AS accountSummary, account.leave_on_server AS accountLeaveOnServer, account.leave_deleted AS accountLeaveDeleted, account.auto_seen AS accountAutoSeen" +
+            ", folder.name AS folderName, folder.color AS folderColor, folder.display AS folderDisplay, folder.type AS folderType, NULL AS folderInheritedType, folder.unified AS folderUnified, folder.read_only AS folderReadOnly" +
+            ", IFNULL(identity.display, identity.name) AS identityName, identity.email AS identityEmail, identity.color AS identityColor, identity.synchronize AS identitySynchronize" +
+            ", summary.senders, summary.recipients" +
+            ", summary.count, summary.unseen, summary.unflagged, summary.drafts" +
+            ", summary.visible, summary.visible_unseen" +
+            ", summary.attachments AS totalAttachments" +
+            ", summary.total AS totalSize" +
+            ", message.priority AS ui_priority" +
+            ", message.importance AS ui_importance" +
+            " FROM message" +
+            " JOIN account_view AS account ON account.id = message.account" +
+            " LEFT JOIN identity_view AS identity ON identity.id = message.identity" +
+            " JOIN folder_view AS folder ON folder.id = message.folder" +
+            " JOIN thread AS summary ON summary.account = message.account AND summary.thread = IFNULL(message.thread, 'id:' || message.id)" +
+            " WHERE account.`synchronize`" +
+            " AND ((:type IS NULL AND folder.unified) OR (:type IS NOT NULL AND folder.type = :type))" +
+            " AND NOT message.ui_hide" +
+            " AND NOT EXISTS" +
+            "  (SELECT * FROM message AS m" +
+            "  JOIN folder AS f ON f.id = m.folder" +
+            "  WHERE m.account = message.account AND m.thread = message.thread" +
+            "  AND NOT m.ui_hide" +
+            "  AND ((:type IS NULL AND f.unified) OR (:type IS NOT NULL AND f.type = :type))" +
+            "  AND (m.received > message.received OR (m.received = message.received AND m.id > message.id)))" +
+            " AND (NOT :filter_seen OR summary.unseen > 0)" +
+            " AND (NOT :filter_unflagged OR summary.count - summary.unflagged > 0)" +
+            " AND (NOT :filter_unknown OR summary.unknown > 0)" +
+            " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_drafts + ")" +
+            " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
+            " AND (:filter_language IS NULL OR message.language = :filter_language OR EXISTS" +
+            "  (SELECT * FROM message AS m" +
+            "  WHERE m.account = message.account AND m.thread = message.thread" +
+            "  AND NOT m.ui_hide AND m.language = :filter_language))" +
+            " ORDER BY -IFNULL(message.importance, 1)" +
+            ", CASE WHEN :group_category THEN account.category ELSE '' END COLLATE NOCASE" +
+            ", CASE" +
+            "   WHEN 'unread' = :sort1 THEN summary.unseen = 0" +
+            "   WHEN 'starred' = :sort1 THEN summary.count - summary.unflagged = 0" +
+            "   WHEN 'priority' = :sort1 THEN -IFNULL(message.priority, 1)" +
+            "   WHEN 'sender' = :sort1 THEN LOWER(message.sender)" +
+            "   WHEN 'subject' = :sort1 THEN LOWER(message.subject)" +
+            "   WHEN 'size' = :sort1 THEN -summary.total" +
+            "   WHEN 'attachments' = :sort1 THEN -summary.attachments" +
+            "   WHEN 'snoozed' = :sort1 THEN summary.snoozed = 0" +
+            "   WHEN 'touched' = :sort1 THEN IFNULL(-message.last_touched, 0)" +
+            "   ELSE 0" +
+            "  END" +
+            ", CASE" +
+            "   WHEN 'unread' = :sort2 THEN summary.unseen = 0" +
+            "   WHEN 'starred' = :sort2 THEN summary.count - summary.unflagged = 0" +
+            "   ELSE 0" +
+            "  END" +
+            ", CASE WHEN :ascending THEN message.received ELSE -message.received END")
+    DataSource.Factory<Integer, TupleMessageEx> pagedUnifiedThreads(
+            String type,
+            boolean group_category,
+            String sort1, String sort2, boolean ascending,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_unknown, boolean filter_snoozed, boolean filter_deleted, String filter_language);
+
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query("SELECT message.*" +
+            ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
+            ", account.notify AS accountNotify, account.summary AS accountSummary, account.leave_on_server AS accountLeaveOnServer, account.leave_deleted AS accountLeaveDeleted, account.auto_seen AS accountAutoSeen" +
+            ", folder.name AS folderName, folder.color AS folderColor, folder.display AS folderDisplay, folder.type AS folderType, folder.inherited_type AS folderInheritedType, folder.unified AS folderUnified, folder.read_only AS folderReadOnly" +
+            ", IFNULL(identity.display, identity.name) AS identityName, identity.email AS identityEmail, identity.color AS identityColor, identity.synchronize AS identitySynchronize" +
+            ", summary.senders, summary.recipients" +
+            ", summary.count, summary.unseen, summary.unflagged, summary.drafts" +
+            ", summary.visible, summary.visible_unseen" +
+            ", summary.attachments AS totalAttachments" +
+            ", summary.total AS totalSize" +
+            ", message.priority AS ui_priority" +
+            ", message.importance AS ui_importance" +
+            " FROM message" +
+            " JOIN account_view AS account ON account.id = message.account" +
+            " LEFT JOIN identity_view AS identity ON identity.id = message.identity" +
+            " JOIN folder_view AS folder ON folder.id = message.folder" +
+            " JOIN thread AS summary ON summary.account = message.account AND summary.thread = IFNULL(message.thread, 'id:' || message.id)" +
+            " WHERE message.folder = :folder" +
+            " AND NOT message.ui_hide" +
+            " AND NOT EXISTS" +
+            "  (SELECT * FROM message AS m" +
+            "  WHERE m.folder = message.folder AND m.thread = message.thread" +
+            "  AND NOT m.ui_hide" +
+            "  AND (m.received > message.received OR (m.received = message.received AND m.id > message.id)))" +
+            " AND (NOT :filter_seen OR summary.unseen > 0 OR " + is_outbox + ")" +
+            " AND (NOT :filter_unflagged OR summary.count - summary.unflagged > 0 OR " + is_outbox + ")" +
+            " AND (NOT :filter_unknown OR summary.unknown > 0" +
+            "   OR " + is_outbox + " OR " + is_drafts + " OR " + is_sent + ")" +
+            " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_outbox + " OR " + is_drafts + ")" +
+            " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
+            " AND (:filter_language IS NULL OR " + is_outbox + " OR message.language = :filter_language OR EXISTS" +
+            "  (SELECT * FROM message AS m" +
+            "  WHERE m.account = message.account AND m.thread = message.thread" +
+            "  AND NOT m.ui_hide AND m.language = :filter_language))" +
+            " ORDER BY -IFNULL(message.importance, 1)" +
+            ", CASE" +
+            "   WHEN 'unread' = :sort1 THEN summary.unseen = 0" +
+            "   WHEN 'starred' = :sort1 THEN summary.count - summary.unflagged = 0" +
+            "   WHEN 'priority' = :sort1 THEN -IFNULL(message.priority, 1)" +
+            "   WHEN 'sender' = :sort1 THEN LOWER(message.sender)" +
+            "   WHEN 'subject' = :sort1 THEN LOWER(message.subject)" +
+            "   WHEN 'size' = :sort1 THEN -summary.total" +
+            "   WHEN 'attachments' = :sort1 THEN -summary.attachments" +
+            "   WHEN 'snoozed' = :sort1 THEN summary.snoozed = 0" +
+            "   WHEN 'touched' = :sort1 THEN IFNULL(-message.last_touched, 0)" +
+            "   ELSE 0" +
+            "  END" +
+            ", CASE" +
+            "   WHEN 'unread' = :sort2 THEN summary.unseen = 0" +
+            "   WHEN 'starred' = :sort2 THEN summary.count - summary.unflagged = 0" +
+            "   ELSE 0" +
+            "  END" +
+            ", CASE WHEN :ascending THEN message.received ELSE -message.received END")
+    DataSource.Factory<Integer, TupleMessageEx> pagedFolderThreads(
+            long folder,
+            String sort1, String sort2, boolean ascending,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_unknown, boolean filter_snoozed, boolean filter_deleted, String filter_language);
+
+    // Keyset pages of threaded lists sorted on time
+    // Keys are (received, id) within an importance
+    // Row values need SQLite 3.15 (Android 8), so the keys are compared column by column
+    // The bound on received alone lets the index on (folder, received, id) seek to the key
+
+    String keyset_unified = "SELECT message.*" +
+            ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
+            ", account.notify AS accountNotify, account.summary AS accountSummary, account.leave_on_server AS accountLeaveOnServer, account.leave_deleted AS accountLeaveDeleted, account.auto_seen AS accountAutoSeen" +
+            ", folder.name AS folderName, folder.color AS folderColor, folder.display AS folderDisplay, folder.type AS folderType, NULL AS folderInheritedType, folder.unified AS folderUnified, folder.read_only AS folderReadOnly" +
+            ", IFNULL(identity.display, identity.name) AS identityName, identity.email AS identityEmail, identity.color AS identityColor, identity.synchronize AS identitySynchronize" +
+            ", summary.senders, summary.recipients" +
+            ", summary.count, summary.unseen, summary.unflagged, summary.drafts" +
+            ", summary.visible, summary.visible_unseen" +
+            ", summary.attachments AS totalAttachments" +
+            ", summary.total AS totalSize" +
+            ", message.priority AS ui_priority" +
+            ", message.importance AS ui_importance" +
+            " FROM message" +
+            " JOIN account_view AS account ON account.id = message.account" +
+            " LEFT JOIN identity_view AS identity ON identity.id = message.identity" +
+            " JOIN folder_view AS folder ON folder.id = message.folder" +
+            " JOIN thread AS summary ON summary.account = message.account AND summary.thread = IFNULL(message.thread, 'id:' || message.id)" +
+            " WHERE account.`synchronize`" +
+            " AND ((:type IS NULL AND folder.unified) OR (:type IS NOT NULL AND folder.type = :type))" +
+            " AND NOT message.ui_hide" +
+            " AND NOT EXISTS" +
+            "  (SELECT * FROM message AS m" +
+            "  JOIN folder AS f ON f.id = m.folder" +
+            "  WHERE m.account = message.account AND m.thread = message.thread" +
+            "  AND NOT m.ui_hide" +
+            "  AND ((:type IS NULL AND f.unified) OR (:type IS NOT NULL AND f.type = :type))" +
+            "  AND (m.received > message.received OR (m.received = message.received AND m.id > message.id)))" +
+            " AND (NOT :filter_seen OR summary.unseen > 0)" +
+            " AND (NOT :filter_unflagged OR summary.count - summary.unflagged > 0)" +
+            " AND (NOT :filter_unknown OR summary.unknown > 0)" +
+            " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_drafts + ")" +
+            " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
+            " AND (:filter_language IS NULL OR message.language = :filter_language OR EXISTS" +
+            "  (SELECT * FROM message AS m" +
+            "  WHERE m.account = message.account AND m.thread = message.thread" +
+            "  AND NOT m.ui_hide AND m.language = :filter_language))";
+
+    String keyset_folder = "SELECT message.*" +
+            ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
+            ", account.notify AS accountNotify, account.summary AS accountSummary, account.leave_on_server AS accountLeaveOnServer, account.leave_deleted AS accountLeaveDeleted, account.auto_seen AS accountAutoSeen" +
+            ", folder.name AS folderName, folder.color AS folderColor, folder.display AS folderDisplay, folder.type AS folderType, folder.inherited_type AS folderInheritedType, folder.unified AS folderUnified, folder.read_only AS folderReadOnly" +
+            ", IFNULL(identity.display, identity.name) AS identityName, identity.email AS identityEmail, identity.color AS identityColor, identity.synchronize AS identitySynchronize" +
+            ", summary.senders, summary.recipients" +
+            ", summary.count, summary.unseen, summary.unflagged, summary.drafts" +
+            ", summary.visible, summary.visible_unseen" +
+            ", summary.attachments AS totalAttachments" +
+            ", summary.total AS totalSize" +
+            ", message.priority AS ui_priority" +
+            ", message.importance AS ui_importance" +
+            " FROM message" +
+            " JOIN account_view AS account ON account.id = message.account" +
+            " LEFT JOIN identity_view AS identity ON identity.id = message.identity" +
+            " JOIN folder_view AS folder ON folder.id = message.folder" +
+            " JOIN thread AS summary ON summary.account = message.account AND summary.thread = IFNULL(message.thread, 'id:' || message.id)" +
+            " WHERE message.folder = :folder" +
+            " AND NOT message.ui_hide" +
+            " AND NOT EXISTS" +
+            "  (SELECT * FROM message AS m" +
+            "  WHERE m.folder = message.folder AND m.thread = message.thread" +
+            "  AND NOT m.ui_hide" +
+            "  AND (m.received > message.received OR (m.received = message.received AND m.id > message.id)))" +
+            " AND (NOT :filter_seen OR summary.unseen > 0 OR " + is_outbox + ")" +
+            " AND (NOT :filter_unflagged OR summary.count - summary.unflagged > 0 OR " + is_outbox + ")" +
+            " AND (NOT :filter_unknown OR summary.unknown > 0" +
+            "   OR " + is_outbox + " OR " + is_drafts + " OR " + is_sent + ")" +
+            " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_outbox + " OR " + is_drafts + ")" +
+            " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
+            " AND (:filter_language IS NULL OR " + is_outbox + " OR message.language = :filter_language OR EXISTS" +
+            "  (SELECT * FROM message AS m" +
+            "  WHERE m.account = message.account AND m.thread = message.thread" +
+            "  AND NOT m.ui_hide AND m.language = :filter_language))";
+
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query(keyset_unified +
+            " AND IFNULL(message.importance, 1) = :importance" +
+            " AND message.received >= :received" +
+            " AND (message.received > :received OR message.id > :id)" +
+            " ORDER BY message.received ASC, message.id ASC" +
+            " LIMIT :limit")
+    List<TupleMessageEx> keysetUnifiedThreadsAfter(
+            String type,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_unknown, boolean filter_snoozed, boolean filter_deleted, String filter_language,
+            int importance, long received, long id, int limit);
+
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query(keyset_unified +
+            " AND IFNULL(message.importance, 1) = :importance" +
+            " AND message.received <= :received" +
+            " AND (message.received < :received OR message.id < :id)" +
+            " ORDER BY message.received DESC, message.id DESC" +
+            " LIMIT :limit")
+    List<TupleMessageEx> keysetUnifiedThreadsBefore(
+            String type,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_unknown, boolean filter_snoozed, boolean filter_deleted, String filter_language,
+            int importance, long received, long id, int limit);
+
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query(keyset_folder +
+            " AND IFNULL(message.importance, 1) = :importance" +
+            " AND message.received >= :received" +
+            " AND (message.received > :received OR message.id > :id)" +
+            " ORDER BY message.received ASC, message.id ASC" +
+            " LIMIT :limit")
+    List<TupleMessageEx> keysetFolderThreadsAfter(
+            long folder,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_unknown, boolean filter_snoozed, boolean filter_deleted, String filter_language,
+            int importance, long received, long id, int limit);
+
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query(keyset_folder +
+            " AND IFNULL(message.importance, 1) = :importance" +
+            " AND message.received <= :received" +
+            " AND (message.received < :received OR message.id < :id)" +
+            " ORDER BY message.received DESC, message.id DESC" +
+            " LIMIT :limit")
+    List<TupleMessageEx> keysetFolderThreadsBefore(
+            long folder,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_unknown, boolean filter_snoozed, boolean filter_deleted, String filter_language,
+            int importance, long received, long id, int limit);
+
     @Transaction
     @Query("SELECT message.*" +
             ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
@@ -314,12 +571,23 @@ public interface DaoMessage {
             " WHERE id = :id")
     EntityMessage getMessage(long id);
 
+    @Query("SELECT *" +
+            " FROM message" +
+            " WHERE id IN (:ids)")
+    List<EntityMessage> getMessagesByIds(List<Long> ids);
+
     @Query("SELECT *" +
             " FROM message" +
             " WHERE folder = :folder" +
             " AND uid = :uid")
     EntityMessage getMessageByUid(long folder, long uid);
 
+    @Query("SELECT *" +
+            " FROM message" +
+            " WHERE folder = :folder" +
+            " AND uid IN (:uids)")
+    List<EntityMessage> getMessagesByUids(long folder, List<Long> uids);
+
     @Query("SELECT id" +
             " FROM message" +
             " WHERE folder = :folder" +
@@ -434,6 +702,11 @@ public interface DaoMessage {
             " AND msgid = :msgid")
     List<EntityMessage> getMessagesByMsgId(long account, String msgid);
 
+    @Query("SELECT * FROM message" +
+            " WHERE account = :account" +
+            " AND msgid IN (:msgids)")
+    List<EntityMessage> getMessagesByMsgIds(long account, List<String> msgids);
+
     @Query("SELECT message.* FROM message" +
             " JOIN folder ON folder.id = message.folder" +
             " WHERE message.account = :account" +
@@ -446,7 +719,7 @@ public interface DaoMessage {
             " AND inreplyto = :inreplyto")
     List<EntityMessage> getMessagesByInReplyTo(long account, String inreplyto);
 
-    @Query("SELECT thread, msgid, hash, inreplyto FROM message" +
+    @Query("SELECT id, thread, msgid, hash, inreplyto, received FROM message" +
             " WHERE account = :account" +
             " AND (msgid IN (:msgids) OR inreplyto IN (:msgids))" +
             " AND (:from IS NULL OR received IS NULL OR received > :from)" +
@@ -783,6 +1056,18 @@ public interface DaoMessage {
     @Query("UPDATE message SET flagged = :flagged WHERE id = :id AND NOT (flagged IS :flagged)")
     int setMessageFlagged(long id, boolean flagged);
 
+    @Query("UPDATE message SET seen = :seen" +
+            " WHERE folder = :folder" +
+            " AND uid BETWEEN :first AND :last" +
+            " AND NOT (seen IS :seen)")
+    int setMessagesSeen(long folder, long first, long last, boolean seen);
+
+    @Query("UPDATE message SET flagged = :flagged" +
+            " WHERE folder = :folder" +
+            " AND uid BETWEEN :first AND :last" +
+            " AND NOT (flagged IS :flagged)")
+    int setMessagesFlagged(long folder, long first, long last, boolean flagged);
+
     @Query("UPDATE message SET deleted = :deleted WHERE id = :id AND NOT (deleted IS :deleted)")
     int setMessageDeleted(long id, boolean deleted);
 
@@ -798,12 +1083,23 @@ public interface DaoMessage {
     @Query("UPDATE message SET ui_seen = :ui_seen WHERE id = :id AND NOT (ui_seen IS :ui_seen)")
     int setMessageUiSeen(long id, boolean ui_seen);
 
+    @Query("UPDATE message SET ui_seen = :ui_seen, ui_ignored = 1" +
+            " WHERE id IN (:ids)" +
+            " AND (NOT (ui_seen IS :ui_seen) OR NOT ui_ignored)")
+    int setMessagesUiSeen(List<Long> ids, boolean ui_seen);
+
     @Query("UPDATE message" +
             " SET ui_flagged = :ui_flagged, color = :color" +
             " WHERE id = :id" +
             " AND (NOT (ui_flagged IS :ui_flagged) OR NOT (color IS :color))")
     int setMessageUiFlagged(long id, boolean ui_flagged, Integer color);
 
+    @Query("UPDATE message" +
+            " SET ui_flagged = :ui_flagged, color = NULL" +
+            " WHERE id IN (:ids)" +
+            " AND (NOT (ui_flagged IS :ui_flagged) OR color IS NOT NULL)")
+    int setMessagesUiFlagged(List<Long> ids, boolean ui_flagged);
+
     @Query("UPDATE message SET ui_deleted = :ui_deleted WHERE id = :id AND NOT (ui_deleted IS :ui_deleted)")
     int setMessageUiDeleted(long id, boolean ui_deleted);
 
@@ -813,6 +1109,17 @@ public interface DaoMessage {
     @Query("UPDATE message SET ui_hide = :ui_hide WHERE id = :id AND NOT (ui_hide IS :ui_hide)")
     int setMessageUiHide(long id, Boolean ui_hide);
 
+    @Query("UPDATE message SET ui_hide = :ui_hide" +
+            " WHERE id IN (:ids)" +
+            " AND NOT (ui_hide IS :ui_hide)")
+    int setMessagesUiHide(List<Long> ids, boolean ui_hide);
+
+    @Query("UPDATE message SET ui_hide = :ui_hide" +
+            " WHERE folder = :folder" +
+            " AND uid BETWEEN :first AND :last" +
+            " AND NOT (ui_hide IS :ui_hide)")
+    int setMessagesUiHide(long folder, long first, long last, boolean ui_hide);
+
     @Transaction
     @Query("UPDATE message SET ui_hide = 1" +
             " WHERE folder = :folder" +
@@ -985,6 +1292,11 @@ public interface DaoMessage {
             " AND uid = :uid")
     int deleteMessage(long folder, long uid);
 
+    @Query("DELETE FROM message" +
+            " WHERE folder = :folder" +
+            " AND uid BETWEEN :first AND :last")
+    int deleteMessages(long folder, long first, long last);
+
     @Query("DELETE FROM message" +
             " WHERE folder = :folder" +
             " AND NOT uid IS NULL")
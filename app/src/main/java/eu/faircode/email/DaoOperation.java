@@ -46,8 +46,10 @@ public interface DaoOperation {
             " WHEN operation.name = '" + EntityOperation.SUBJECT + "' THEN 3" +
             " WHEN operation.name = '" + EntityOperation.COPY + "' THEN 4" +
             " WHEN operation.name = '" + EntityOperation.MOVE + "' THEN 5" +
+            " WHEN operation.name = '" + EntityOperation.RELOCATE + "' THEN 5" +
             " WHEN operation.name = '" + EntityOperation.PURGE + "' THEN 6" +
             " WHEN operation.name = '" + EntityOperation.DELETE + "' THEN 7" +
+            " WHEN operation.name = '" + EntityOperation.ERASE + "' THEN 7" +
             " WHEN operation.name = '" + EntityOperation.EXPUNGE + "' THEN 8" +
             " ELSE 0" +
             " END";
@@ -76,8 +78,19 @@ public interface DaoOperation {
             " WHERE operation.account = :account" +
             " AND account.synchronize" +
             " AND folder.account IS NOT NULL" + // not outbox
+            " AND operation.id > :since" +
             " ORDER BY " + priority + ", id")
-    LiveData<List<TupleOperationEx>> liveOperations(long account);
+    List<TupleOperationEx> getOperations(long account, long since);
+
+    @Query("SELECT COUNT(operation.id) AS pending" +
+            ", MAX(operation.id) AS last" +
+            " FROM operation" +
+            " JOIN folder ON folder.id = operation.folder" +
+            " JOIN account ON account.id = operation.account" +
+            " WHERE operation.account = :account" +
+            " AND account.synchronize" +
+            " AND folder.account IS NOT NULL") // not outbox
+    LiveData<TupleOperationWatermark> liveOperationWatermark(long account);
 
     @Query("SELECT operation.id" +
             ", message.uid, message.content" +
@@ -156,6 +169,15 @@ public interface DaoOperation {
             " AND name = :name")
     int getOperationCount(long folder, long message, String name);
 
+    @Query("SELECT COUNT(id) FROM operation" +
+            " WHERE folder = :folder" +
+            " AND name = :name" +
+            " AND uid = :uid" +
+            " AND options IS :options" +
+            " AND state IS NULL" +
+            " AND tries = 0 AND error IS NULL")
+    int getPendingOperationCount(long folder, String name, long uid, Integer options);
+
     @Query("UPDATE operation SET tries = :tries WHERE id = :id AND NOT (tries IS :tries)")
     int setOperationTries(long id, int tries);
 
@@ -168,6 +190,9 @@ public interface DaoOperation {
             " AND name <> '" + EntityOperation.SEND + "'")
     int resetOperationStates(long account);
 
+    @Query("UPDATE operation SET args = :args WHERE id = :id AND NOT (args IS :args)")
+    int setOperationArgs(long id, String args);
+
     @Query("UPDATE operation SET error = :error WHERE id = :id AND NOT (error IS :error)")
     int setOperationError(long id, String error);
 
@@ -179,4 +204,13 @@ public interface DaoOperation {
 
     @Query("DELETE FROM operation WHERE folder = :folder AND name = :name")
     int deleteOperations(long folder, String name);
+
+    @Query("DELETE FROM operation" +
+            " WHERE folder = :folder" +
+            " AND name = :name" +
+            " AND uid = :uid" +
+            " AND options IS :options" +
+            " AND state IS NULL" +
+            " AND (tries > 0 OR error IS NOT NULL)")
+    int deleteFailedOperations(long folder, String name, long uid, Integer options);
 }
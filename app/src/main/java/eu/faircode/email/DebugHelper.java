@@ -238,8 +238,9 @@ public class DebugHelper {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
                 attachNotificationInfo(context, draft.id, 8);
             attachEnvironment(context, draft.id, 9);
+            attachSyncMetrics(context, draft.id, 10);
             //if (MessageClassifier.isEnabled(context))
-            //    attachClassifierData(context, draft.id, 10);
+            //    attachClassifierData(context, draft.id, 11);
 
             EntityOperation.queue(context, draft, EntityOperation.ADD);
 
@@ -1326,6 +1327,33 @@ public class DebugHelper {
         }
     }
 
+    private static void attachSyncMetrics(Context context, long id, int sequence) {
+        try {
+            DB db = DB.getInstance(context);
+
+            EntityAttachment attachment = new EntityAttachment();
+            attachment.message = id;
+            attachment.sequence = sequence;
+            attachment.name = "sync.txt";
+            attachment.type = "text/plain";
+            attachment.disposition = Part.ATTACHMENT;
+            attachment.size = null;
+            attachment.progress = 0;
+            attachment.id = db.attachment().insertAttachment(attachment);
+
+            long size = 0;
+            File file = attachment.getFile(context);
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+                size += write(os, SyncMetrics.dump());
+                size += write(os, "\r\n" + EntityLog.getStats() + "\r\n");
+            }
+
+            db.attachment().setDownloaded(attachment.id, size);
+        } catch (Throwable ex) {
+            Log.e(ex);
+        }
+    }
+
     private static void attachLogcat(Context context, long id, int sequence) {
         try {
             DB db = DB.getInstance(context);
@@ -358,6 +358,17 @@ public class EmailService implements AutoCloseable {
         properties.put("mail." + protocol + ".restartidleinterval", Integer.toString(seconds));
     }
 
+    void setSeparateStoreConnection(boolean enabled) {
+        properties.put("mail." + protocol + ".separatestoreconnection", Boolean.toString(enabled));
+    }
+
+    void setSocketChannels(boolean enabled) {
+        // Required to watch folders with an IdleManager
+        properties.put("mail." + protocol + ".usesocketchannels", Boolean.toString(enabled));
+        if (enabled)
+            properties.put("mail.event.scope", "session");
+    }
+
     // https://tools.ietf.org/html/rfc3461
     void setDsnNotify(String what) {
         properties.put("mail." + protocol + ".dsn.notify", what);
@@ -30,8 +30,15 @@ import androidx.room.Entity;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Entity(
         tableName = EntityLog.TABLE_NAME,
@@ -47,10 +54,26 @@ public class EntityLog {
     private static boolean ok = true;
     private static long count = 0;
     private static Long last_cleanup = null;
+    private static long reported = 0;
+
+    // Entries are queued and written in batches by a single writer
+    private static final ConcurrentLinkedQueue<EntityLog> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicBoolean writing = new AtomicBoolean();
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong sample = new AtomicLong();
+    private static final AtomicLong sampled = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final ExecutorService executor = Helper.getBackgroundExecutor(1, "log");
 
     private static final long LOG_CLEANUP_INTERVAL = 3600 * 1000L; // milliseconds
     private static final long LOG_KEEP_DURATION = (BuildConfig.DEBUG ? 24 : 12) * 3600 * 1000L; // milliseconds
     private static final int LOG_DELETE_BATCH_SIZE = 50;
+    private static final int LOG_WRITE_BATCH_SIZE = 250; // entries per transaction
+    private static final long LOG_WRITE_DELAY = 500L; // milliseconds
+    private static final int LOG_QUEUE_SAMPLE = 1000; // entries
+    private static final int LOG_QUEUE_MAX = 2500; // entries
+    private static final int LOG_SAMPLE_RATE = 10; // keep one of
 
     @PrimaryKey(autoGenerate = true)
     public Long id;
@@ -134,47 +157,134 @@ public class EntityLog {
         entry.message = message;
         entry.data = data;
 
-        final DB db = DB.getInstance(context);
-        final Context acontext = context.getApplicationContext();
+        enqueue(context, entry);
+    }
 
-        Helper.getSerialExecutor().submit(new Runnable() {
-            @Override
-            public void run() {
-                // Check available storage space
-                if (!ok || (++count % LOG_DELETE_BATCH_SIZE) == 0) {
-                    long cake = Helper.getAvailableStorageSpace();
-                    boolean wasOk = ok;
-                    ok = (cake > Helper.MIN_REQUIRED_SPACE);
-                    if (!ok)
-                        if (wasOk) {
-                            entry.type = Type.General;
-                            entry.account = null;
-                            entry.folder = null;
-                            entry.message = null;
-                            entry.data = "Insufficient storage space=" +
-                                    Helper.humanReadableByteCount(cake) + "/" +
-                                    Helper.humanReadableByteCount(Helper.MIN_REQUIRED_SPACE);
-                        } else
-                            return;
-                }
+    private static void enqueue(Context context, EntityLog entry) {
+        int n = queued.incrementAndGet();
+        if (n > LOG_QUEUE_MAX) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+
+        // Keep a sample of verbose entries when the writer falls behind
+        if (n > LOG_QUEUE_SAMPLE && isVerbose(entry.type) &&
+                sample.incrementAndGet() % LOG_SAMPLE_RATE != 0) {
+            queued.decrementAndGet();
+            sampled.incrementAndGet();
+            return;
+        }
+
+        queue.add(entry);
 
-                try {
-                    db.beginTransaction();
-                    db.log().insertLog(entry);
-                    db.setTransactionSuccessful();
-                } catch (Throwable ex) {
-                    Log.e(ex);
-                } finally {
-                    db.endTransaction();
+        if (writing.compareAndSet(false, true)) {
+            final Context acontext = context.getApplicationContext();
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    write(acontext);
                 }
+            });
+        }
+    }
 
-                long now = new Date().getTime();
-                if (last_cleanup == null || last_cleanup + LOG_CLEANUP_INTERVAL < now) {
-                    last_cleanup = now;
-                    cleanup(acontext, now - LOG_KEEP_DURATION);
+    private static void write(Context context) {
+        DB db = DB.getInstance(context);
+        while (true) {
+            try {
+                // Coalesce entries
+                Thread.sleep(LOG_WRITE_DELAY);
+            } catch (InterruptedException ex) {
+                Log.w(ex);
+            }
+
+            EntityLog entry;
+            List<EntityLog> batch = new ArrayList<>();
+            while ((entry = queue.poll()) != null) {
+                queued.decrementAndGet();
+                batch.add(entry);
+                if (batch.size() >= LOG_WRITE_BATCH_SIZE || queue.isEmpty()) {
+                    insert(db, batch);
+                    batch.clear();
                 }
             }
-        });
+            if (batch.size() > 0)
+                insert(db, batch);
+
+            long now = new Date().getTime();
+            if (last_cleanup == null || last_cleanup + LOG_CLEANUP_INTERVAL < now) {
+                last_cleanup = now;
+                cleanup(context, now - LOG_KEEP_DURATION);
+            }
+
+            writing.set(false);
+            if (queue.isEmpty() || !writing.compareAndSet(false, true))
+                break;
+        }
+    }
+
+    private static void insert(DB db, List<EntityLog> batch) {
+        // Check available storage space
+        count += batch.size();
+        if (!ok || count >= LOG_DELETE_BATCH_SIZE) {
+            count = 0;
+            long cake = Helper.getAvailableStorageSpace();
+            boolean wasOk = ok;
+            ok = (cake > Helper.MIN_REQUIRED_SPACE);
+            if (!ok)
+                if (wasOk) {
+                    EntityLog entry = new EntityLog();
+                    entry.time = new Date().getTime();
+                    entry.type = Type.General;
+                    entry.thread = Thread.currentThread().getId();
+                    entry.data = "Insufficient storage space=" +
+                            Helper.humanReadableByteCount(cake) + "/" +
+                            Helper.humanReadableByteCount(Helper.MIN_REQUIRED_SPACE);
+                    dropped.addAndGet(batch.size());
+                    batch.clear();
+                    batch.add(entry);
+                } else {
+                    dropped.addAndGet(batch.size());
+                    return;
+                }
+        }
+
+        long lost = dropped.get();
+        if (lost != reported) {
+            EntityLog entry = new EntityLog();
+            entry.time = new Date().getTime();
+            entry.type = Type.General;
+            entry.thread = Thread.currentThread().getId();
+            entry.data = "Log dropped=" + (lost - reported) + " total=" + lost;
+            batch.add(entry);
+            reported = lost;
+        }
+
+        try {
+            db.beginTransaction();
+            for (EntityLog entry : batch)
+                db.log().insertLog(entry);
+            db.setTransactionSuccessful();
+            written.addAndGet(batch.size());
+        } catch (Throwable ex) {
+            Log.e(ex);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static boolean isVerbose(Type type) {
+        return (type == Type.Protocol ||
+                type == Type.Debug1 || type == Type.Debug2 || type == Type.Debug3 ||
+                type == Type.Debug4 || type == Type.Debug5);
+    }
+
+    static String getStats() {
+        return "Log queued=" + queued.get() +
+                " written=" + written.get() +
+                " sampled=" + sampled.get() +
+                " dropped=" + dropped.get();
     }
 
     static void clear(final Context context) {
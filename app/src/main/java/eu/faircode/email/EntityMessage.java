@@ -83,6 +83,7 @@ import javax.mail.internet.InternetAddress;
                 @Index(value = {"thread"}),
                 @Index(value = {"sender"}),
                 @Index(value = {"received"}),
+                @Index(value = {"folder", "received", "id"}),
                 @Index(value = {"subject"}),
                 @Index(value = {"ui_seen"}),
                 @Index(value = {"ui_flagged"}),
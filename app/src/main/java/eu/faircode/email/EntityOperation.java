@@ -25,6 +25,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteConstraintException;
 import android.text.TextUtils;
+import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
@@ -33,6 +34,8 @@ import androidx.room.ForeignKey;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
+import com.sun.mail.imap.protocol.UIDSet;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 
@@ -43,6 +46,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -60,7 +64,10 @@ import javax.mail.internet.InternetAddress;
                 @Index(value = {"folder"}),
                 @Index(value = {"message"}),
                 @Index(value = {"name"}),
-                @Index(value = {"state"})
+                @Index(value = {"state"}),
+                @Index(value = {"message", "name"}),
+                @Index(value = {"folder", "name"}),
+                @Index(value = {"target"})
         }
 )
 public class EntityOperation {
@@ -76,6 +83,10 @@ public class EntityOperation {
     public String name;
     @NonNull
     public String args;
+    public Long target; // move, copy
+    public Long uid; // fetch, download
+    public Boolean flag; // seen, answered, flag, subscribe
+    public Integer options; // boolean arguments, bit n = argument n
     @NonNull
     public Long created;
     @NonNull
@@ -108,8 +119,14 @@ public class EntityOperation {
     static final String REPORT = "report";
     static final String DOWNLOAD = "download";
     static final String SUBJECT = "subject";
+    static final String STORE = "store"; // seen/flag by UID set
+    static final String RELOCATE = "relocate"; // move by UID set
+    static final String ERASE = "erase"; // delete by UID set
 
     private static final int MAX_FETCH = 100; // operations
+    private static final int MAX_OPTIONS = 31; // bits
+    private static final int BULK_MIN = 100; // messages per folder
+    private static final int MAX_QUERY = 450; // SQLite max variables
     private static final long FORCE_WITHIN = 30 * 1000; // milliseconds
 
     static void queue(Context context, EntityMessage message, String name, Object... values) {
@@ -575,6 +592,195 @@ public class EntityOperation {
         }
     }
 
+    static void queue(Context context, List<EntityMessage> messages, String name, boolean value) {
+        // Bulk seen/flag: one local update and one UID set operation per folder
+        if (!SEEN.equals(name) && !FLAG.equals(name))
+            throw new IllegalArgumentException("Bulk " + name);
+
+        DB db = DB.getInstance(context);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean auto_important = prefs.getBoolean("auto_important", false);
+
+        Map<Long, List<EntityMessage>> folders = getFolders(messages);
+        for (Long fid : folders.keySet()) {
+            List<EntityMessage> list = folders.get(fid);
+
+            List<Long> ids = new ArrayList<>();
+            List<Long> uids = new ArrayList<>();
+            for (EntityMessage message : list)
+                if (message.uid != null) {
+                    ids.add(message.id);
+                    uids.add(message.uid);
+                }
+
+            EntityFolder folder = db.folder().getFolder(fid);
+            EntityAccount account = (folder == null || folder.account == null
+                    ? null : db.account().getAccount(folder.account));
+            if (account == null || account.protocol != EntityAccount.TYPE_IMAP ||
+                    uids.size() < BULK_MIN ||
+                    (FLAG.equals(name) && auto_important)) {
+                for (EntityMessage message : list)
+                    queue(context, message, name, value);
+                continue;
+            }
+
+            for (List<Long> chunk : Helper.chunkList(ids, MAX_QUERY))
+                if (SEEN.equals(name))
+                    db.message().setMessagesUiSeen(chunk, value);
+                else
+                    db.message().setMessagesUiFlagged(chunk, value);
+
+            for (EntityMessage message : list)
+                if (message.uid == null)
+                    queue(context, message, name, value);
+
+            long[] sorted = Helper.toLongArray(uids);
+            Arrays.sort(sorted);
+
+            JSONArray jargs = new JSONArray();
+            jargs.put(value);
+            jargs.put(SEEN.equals(name) ? "seen" : "flagged");
+            jargs.put(UIDSet.toString(UIDSet.createUIDSets(sorted)));
+            jargs.put(sorted.length);
+            queue(context, folder.account, folder.id, null, STORE, jargs);
+
+            Log.i("Bulk " + name + "=" + value + " folder=" + folder.id + " messages=" + uids.size());
+        }
+    }
+
+    static void move(Context context, List<EntityMessage> messages, long target) {
+        // Bulk move within an account: one local update and one UID set operation per folder
+        DB db = DB.getInstance(context);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean autoread = prefs.getBoolean("autoread", false);
+        boolean autounflag = prefs.getBoolean("autounflag", false);
+        boolean reset_importance = prefs.getBoolean("reset_importance", false);
+
+        EntityFolder t = db.folder().getFolder(target);
+
+        Map<Long, List<EntityMessage>> folders = getFolders(messages);
+        for (Long fid : folders.keySet()) {
+            List<EntityMessage> list = folders.get(fid);
+
+            // Snoozed and found messages need individual handling
+            List<EntityMessage> bulk = new ArrayList<>();
+            List<EntityMessage> single = new ArrayList<>();
+            for (EntityMessage message : list)
+                if (message.uid != null && message.ui_snoozed == null && !message.ui_found)
+                    bulk.add(message);
+                else
+                    single.add(message);
+
+            EntityFolder source = db.folder().getFolder(fid);
+            EntityAccount account = (source == null || source.account == null
+                    ? null : db.account().getAccount(source.account));
+            if (t == null || account == null ||
+                    account.protocol != EntityAccount.TYPE_IMAP || account.isGmail() ||
+                    !Objects.equals(source.account, t.account) || source.id.equals(t.id) ||
+                    EntityFolder.DRAFTS.equals(source.type) || EntityFolder.DRAFTS.equals(t.type) ||
+                    EntityFolder.JUNK.equals(source.type) || EntityFolder.JUNK.equals(t.type) ||
+                    reset_importance || bulk.size() < BULK_MIN) {
+                for (EntityMessage message : list)
+                    queue(context, message, MOVE, target);
+                continue;
+            }
+
+            List<Long> ids = new ArrayList<>();
+            long[] sorted = new long[bulk.size()];
+            for (int i = 0; i < bulk.size(); i++) {
+                EntityMessage message = bulk.get(i);
+                if (!message.ui_deleted)
+                    ids.add(message.id);
+                sorted[i] = message.uid;
+            }
+            Arrays.sort(sorted);
+
+            for (List<Long> chunk : Helper.chunkList(ids, MAX_QUERY))
+                db.message().setMessagesUiHide(chunk, true);
+
+            for (EntityMessage message : single)
+                queue(context, message, MOVE, target);
+
+            JSONArray jargs = new JSONArray();
+            jargs.put(t.id);
+            jargs.put(autoread);
+            jargs.put(autounflag);
+            jargs.put(UIDSet.toString(UIDSet.createUIDSets(sorted)));
+            jargs.put(sorted.length);
+            queue(context, source.account, source.id, null, RELOCATE, jargs);
+
+            EntityLog.log(context, "Bulk move" +
+                    " source=" + source.id + ":" + source.type + ":" + source.name +
+                    " target=" + t.id + ":" + t.type + ":" + t.name +
+                    " messages=" + sorted.length);
+        }
+    }
+
+    static void delete(Context context, List<EntityMessage> messages) {
+        // Bulk permanent delete: one local update and one UID set operation per folder
+        DB db = DB.getInstance(context);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean perform_expunge = prefs.getBoolean("perform_expunge", true);
+
+        Map<Long, List<EntityMessage>> folders = getFolders(messages);
+        for (Long fid : folders.keySet()) {
+            List<EntityMessage> list = folders.get(fid);
+
+            List<EntityMessage> bulk = new ArrayList<>();
+            for (EntityMessage message : list)
+                if (message.uid != null)
+                    bulk.add(message);
+
+            EntityFolder folder = db.folder().getFolder(fid);
+            EntityAccount account = (folder == null || folder.account == null
+                    ? null : db.account().getAccount(folder.account));
+            if (!perform_expunge || account == null ||
+                    account.protocol != EntityAccount.TYPE_IMAP || account.isGmail() ||
+                    folder.local || bulk.size() < BULK_MIN) {
+                for (EntityMessage message : list)
+                    queue(context, message, DELETE);
+                continue;
+            }
+
+            List<Long> ids = new ArrayList<>();
+            long[] sorted = new long[bulk.size()];
+            for (int i = 0; i < bulk.size(); i++) {
+                ids.add(bulk.get(i).id);
+                sorted[i] = bulk.get(i).uid;
+            }
+            Arrays.sort(sorted);
+
+            for (List<Long> chunk : Helper.chunkList(ids, MAX_QUERY))
+                db.message().setMessagesUiHide(chunk, true);
+
+            for (EntityMessage message : list)
+                if (message.uid == null)
+                    queue(context, message, DELETE);
+
+            JSONArray jargs = new JSONArray();
+            jargs.put(UIDSet.toString(UIDSet.createUIDSets(sorted)));
+            jargs.put(sorted.length);
+            queue(context, folder.account, folder.id, null, ERASE, jargs);
+
+            EntityLog.log(context, "Bulk delete" +
+                    " folder=" + folder.id + ":" + folder.type + ":" + folder.name +
+                    " messages=" + sorted.length);
+        }
+    }
+
+    private static Map<Long, List<EntityMessage>> getFolders(List<EntityMessage> messages) {
+        Map<Long, List<EntityMessage>> folders = new LinkedHashMap<>();
+        for (EntityMessage message : messages) {
+            if (!folders.containsKey(message.folder))
+                folders.put(message.folder, new ArrayList<>());
+            folders.get(message.folder).add(message);
+        }
+        return folders;
+    }
+
     static void queue(Context context, EntityFolder folder, String name, Object... values) {
         JSONArray jargs = new JSONArray();
         for (Object value : values)
@@ -604,8 +810,20 @@ public class EntityOperation {
         op.folder = folder;
         op.message = message;
         op.name = name;
-        op.args = jargs.toString();
+        op.setArgs(jargs);
         op.created = new Date().getTime();
+
+        // Operations which failed already are fed again only after reconnecting, so replace them
+        if ((FETCH.equals(name) || DOWNLOAD.equals(name)) && op.uid != null) {
+            if (db.operation().getPendingOperationCount(folder, name, op.uid, op.options) > 0) {
+                Log.i("Pending op=" + name + " folder=" + folder + " args=" + op.args);
+                return;
+            }
+            int failed = db.operation().deleteFailedOperations(folder, name, op.uid, op.options);
+            if (failed > 0)
+                Log.i("Replacing failed op=" + name + " folder=" + folder + " args=" + op.args + " count=" + failed);
+        }
+
         op.id = db.operation().insertOperation(op);
 
         Log.i("Queued op=" + op.id + "/" + op.name +
@@ -822,7 +1040,7 @@ public class EntityOperation {
             operation.folder = folder.id;
             operation.message = null;
             operation.name = SYNC;
-            operation.args = folder.getSyncArgs(force).toString();
+            operation.setArgs(folder.getSyncArgs(force));
             operation.created = new Date().getTime();
             operation.id = db.operation().insertOperation(operation);
 
@@ -881,7 +1099,7 @@ public class EntityOperation {
         operation.folder = folder.id;
         operation.message = null;
         operation.name = SUBSCRIBE;
-        operation.args = jargs.toString();
+        operation.setArgs(jargs);
         operation.created = new Date().getTime();
         operation.id = db.operation().insertOperation(operation);
 
@@ -898,27 +1116,13 @@ public class EntityOperation {
             if (MOVE.equals(name) || DELETE.equals(name))
                 db.message().setMessageUiHide(message, false);
 
-            if (MOVE.equals(name))
-                try {
-                    JSONArray jargs = new JSONArray(args);
-                    long target = jargs.getLong(0);
-                    db.operation().deleteOperations(target, PURGE);
-                } catch (Throwable ex) {
-                    Log.e(ex);
-                }
+            if (MOVE.equals(name) && target != null)
+                db.operation().deleteOperations(target, PURGE);
 
             if (SEEN.equals(name)) {
                 EntityMessage m = db.message().getMessage(message);
-                if (m != null) {
-                    boolean seen = m.seen;
-                    try {
-                        JSONArray jargs = new JSONArray(args);
-                        seen = jargs.getBoolean(0);
-                    } catch (Throwable ex) {
-                        Log.e(ex);
-                    }
-                    db.message().setMessageUiSeen(m.id, seen);
-                }
+                if (m != null)
+                    db.message().setMessageUiSeen(m.id, flag == null ? m.seen : flag);
             }
 
             if (FLAG.equals(name)) {
@@ -938,6 +1142,18 @@ public class EntityOperation {
             }
         }
 
+        if (RELOCATE.equals(name) || ERASE.equals(name))
+            try {
+                // Show the messages which were not moved or deleted
+                JSONArray jargs = new JSONArray(args);
+                UIDSet[] uidsets = UIDSet.parseUIDSets(jargs.getString(getUidsIndex()));
+                if (uidsets != null)
+                    for (UIDSet range : uidsets)
+                        db.message().setMessagesUiHide(folder, range.start, range.end, false);
+            } catch (JSONException ex) {
+                Log.e(ex);
+            }
+
         if (MOVE.equals(name)) {
             int count = db.operation().deleteOperations(folder, PURGE);
             if (count > 0)
@@ -1002,6 +1218,65 @@ public class EntityOperation {
         }
     }
 
+    void setArgs(JSONArray jargs) {
+        args = jargs.toString();
+        target = null;
+        uid = null;
+        flag = null;
+        options = 0;
+
+        try {
+            if (MOVE.equals(name) || COPY.equals(name) || RELOCATE.equals(name))
+                target = jargs.getLong(0);
+            else if (ADD.equals(name) && jargs.length() > 0)
+                target = jargs.getLong(0); // cross account
+            else if (FETCH.equals(name) || DOWNLOAD.equals(name))
+                uid = jargs.getLong(0);
+            else if (SEEN.equals(name) || ANSWERED.equals(name) ||
+                    FLAG.equals(name) || SUBSCRIBE.equals(name) ||
+                    STORE.equals(name))
+                flag = jargs.getBoolean(0);
+        } catch (JSONException ex) {
+            Log.w(ex);
+        }
+
+        for (int i = 0; i < jargs.length() && i < MAX_OPTIONS; i++)
+            if (Boolean.TRUE.equals(jargs.opt(i)))
+                options |= (1 << i);
+    }
+
+    private int getUidsIndex() {
+        // Bulk operations: remaining UID set, followed by the total number of messages
+        if (STORE.equals(name))
+            return 2;
+        else if (RELOCATE.equals(name))
+            return 3;
+        else if (ERASE.equals(name))
+            return 0;
+        else
+            return -1;
+    }
+
+    Pair<Long, Long> getProgress() {
+        int index = getUidsIndex();
+        if (index < 0)
+            return null;
+
+        try {
+            JSONArray jargs = new JSONArray(args);
+            long remaining = UIDSet.size(UIDSet.parseUIDSets(jargs.getString(index)));
+            long total = jargs.optLong(index + 1, remaining);
+            return new Pair<>(total - remaining, total);
+        } catch (JSONException ex) {
+            Log.w(ex);
+            return null;
+        }
+    }
+
+    boolean hasOption(int index) {
+        return (options != null && (options & (1 << index)) != 0);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof EntityOperation) {
@@ -0,0 +1,99 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2024 by Marcel Bokhorst (M66B)
+*/
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+// Summary of the visible messages of a thread, maintained by triggers on the message table
+// This prevents aggregating all messages for every page of the message list
+// Like the aggregating list queries, the summary covers the thread in all folders of the account
+@Entity(
+        tableName = EntityThread.TABLE_NAME,
+        primaryKeys = {"account", "thread"},
+        foreignKeys = {
+        },
+        indices = {
+        }
+)
+public class EntityThread {
+    static final String TABLE_NAME = "thread";
+
+    // Messages without a thread, like drafts being composed, are a thread of their own
+    static String getKey(String table) {
+        return "IFNULL(" + table + ".thread, 'id:' || " + table + ".id)";
+    }
+
+    static final String SUMMARY = "SELECT m.account, " + getKey("m") +
+            ", COUNT(m.id)" +
+            ", SUM(1 - m.ui_seen)" +
+            ", SUM(1 - m.ui_flagged)" +
+            ", SUM(m.ui_snoozed IS NOT NULL)" +
+            ", SUM(f.type = '" + EntityFolder.DRAFTS + "')" +
+            ", COUNT(DISTINCT" +
+            "   CASE WHEN NOT m.hash IS NULL THEN m.hash" +
+            "   WHEN NOT m.msgid IS NULL THEN m.msgid" +
+            "   ELSE m.id END)" +
+            ", COUNT(DISTINCT" +
+            "   CASE WHEN m.ui_seen THEN NULL" +
+            "   WHEN NOT m.hash IS NULL THEN m.hash" +
+            "   WHEN NOT m.msgid IS NULL THEN m.msgid" +
+            "   ELSE m.id END)" +
+            ", IFNULL(SUM(m.attachments), 0)" +
+            ", IFNULL(SUM(m.total), 0)" +
+            ", IFNULL(SUM(m.avatar IS NOT NULL AND m.sender <> i.email), 0)" +
+            ", '[' || substr(group_concat(m.`from`, ','), 0, 2048) || ']'" +
+            ", '[' || substr(group_concat(m.`to`, ','), 0, 2048) || ']'" +
+            " FROM message AS m" +
+            " JOIN folder AS f ON f.id = m.folder" +
+            " LEFT JOIN identity AS i ON i.id = m.identity" +
+            " WHERE NOT m.ui_hide";
+
+    static final String COLUMNS = "account, thread" +
+            ", count, unseen, unflagged, snoozed, drafts, visible, visible_unseen" +
+            ", attachments, total, unknown, senders, recipients";
+
+    @NonNull
+    public Long account;
+    @NonNull
+    public String thread;
+    @NonNull
+    public Integer count;
+    @NonNull
+    public Integer unseen;
+    @NonNull
+    public Integer unflagged;
+    @NonNull
+    public Integer snoozed;
+    @NonNull
+    public Integer drafts;
+    @NonNull
+    public Integer visible;
+    @NonNull
+    public Integer visible_unseen;
+    @NonNull
+    public Integer attachments;
+    @NonNull
+    public Long total;
+    @NonNull
+    public Integer unknown; // messages from unknown senders
+    public String senders;
+    public String recipients;
+}
@@ -565,6 +565,7 @@ public class FragmentAccounts extends FragmentBase {
 
                                 DB db = DB.getInstance(context);
                                 db.account().deleteAccount(id);
+                                BatchSize.clear(context, id);
 
                                 return null;
                             }
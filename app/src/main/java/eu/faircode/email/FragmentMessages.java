@@ -134,6 +134,7 @@ import androidx.fragment.app.FragmentResultListener;
 import androidx.fragment.app.FragmentTransaction;
 import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.LiveData;
 import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
@@ -146,6 +147,7 @@ import androidx.recyclerview.widget.DividerItemDecoration;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import androidx.room.InvalidationTracker;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.google.android.material.bottomnavigation.BottomNavigationView;
@@ -220,6 +222,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -413,6 +416,7 @@ public class FragmentMessages extends FragmentBase
 
     private static final int MAX_MORE = 100; // messages
     private static final int MAX_SEND_RAW = 50; // messages
+    private static final int MAX_QUERY = 450; // SQLite max variables
     private static final int ITEM_CACHE_SIZE = 10; // Default: 2 items
 
     private static final int REQUEST_RAW = 1;
@@ -4602,6 +4606,7 @@ public class FragmentMessages extends FragmentBase
                 try {
                     db.beginTransaction();
 
+                    Map<Long, EntityMessage> changed = new LinkedHashMap<>();
                     for (long id : ids) {
                         EntityMessage message = db.message().getMessage(id);
                         if (message == null)
@@ -4611,9 +4616,11 @@ public class FragmentMessages extends FragmentBase
                                 message.account, message.thread, threading ? null : id, seen ? null : message.folder);
                         for (EntityMessage threaded : messages)
                             if (threaded.ui_seen != seen)
-                                EntityOperation.queue(context, threaded, EntityOperation.SEEN, seen);
+                                changed.put(threaded.id, threaded);
                     }
 
+                    EntityOperation.queue(context, new ArrayList<>(changed.values()), EntityOperation.SEEN, seen);
+
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
@@ -4726,6 +4733,7 @@ public class FragmentMessages extends FragmentBase
                 try {
                     db.beginTransaction();
 
+                    Map<Long, EntityMessage> changed = new LinkedHashMap<>();
                     for (long id : ids) {
                         EntityMessage message = db.message().getMessage(id);
                         if (message == null)
@@ -4735,9 +4743,15 @@ public class FragmentMessages extends FragmentBase
                                 message.account, message.thread, threading ? null : id, flagged ? message.folder : null);
                         for (EntityMessage threaded : messages)
                             if (threaded.ui_flagged != flagged || !Objects.equals(threaded.color, color))
-                                EntityOperation.queue(context, threaded, EntityOperation.FLAG, flagged, color);
+                                if (color == null)
+                                    changed.put(threaded.id, threaded);
+                                else
+                                    EntityOperation.queue(context, threaded, EntityOperation.FLAG, flagged, color);
                     }
 
+                    if (changed.size() > 0)
+                        EntityOperation.queue(context, new ArrayList<>(changed.values()), EntityOperation.FLAG, flagged);
+
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
@@ -5400,7 +5414,12 @@ public class FragmentMessages extends FragmentBase
                 break;
 
             case FOLDER:
-                db.folder().liveFolderEx(folder).observe(getViewLifecycleOwner(), new Observer<TupleFolderEx>() {
+                InvalidationTracker.scoped(DB.getFolderScope(folder, null), new InvalidationTracker.Factory<LiveData<TupleFolderEx>>() {
+                    @Override
+                    public LiveData<TupleFolderEx> create() {
+                        return db.folder().liveFolderEx(folder);
+                    }
+                }).observe(getViewLifecycleOwner(), new Observer<TupleFolderEx>() {
                     @Override
                     public void onChanged(@Nullable TupleFolderEx folder) {
                         List<TupleFolderEx> folders = new ArrayList<>();
@@ -6815,11 +6834,10 @@ public class FragmentMessages extends FragmentBase
                             folder < 0 ? type : null,
                             filter_unflagged, filter_unknown, filter_snoozed,
                             language_detection ? filter_language : null);
-                    for (long id : ids) {
-                        EntityMessage message = db.message().getMessage(id);
-                        if (message != null)
-                            EntityOperation.queue(context, message, EntityOperation.SEEN, true);
-                    }
+                    List<EntityMessage> messages = new ArrayList<>();
+                    for (List<Long> chunk : Helper.chunkList(ids, MAX_QUERY))
+                        messages.addAll(db.message().getMessagesByIds(chunk));
+                    EntityOperation.queue(context, messages, EntityOperation.SEEN, true);
 
                     db.setTransactionSuccessful();
                 } finally {
@@ -8218,6 +8236,7 @@ public class FragmentMessages extends FragmentBase
 
                     db.beginTransaction();
 
+                    Map<Long, List<EntityMessage>> moves = new LinkedHashMap<>();
                     for (MessageTarget target : result) {
                         EntityMessage message = db.message().getMessage(target.id);
                         if (message == null)
@@ -8226,8 +8245,13 @@ public class FragmentMessages extends FragmentBase
                         Log.i("Move id=" + target.id + " target=" + target.targetFolder.name + " copy=" + target.copy);
                         if (target.copy)
                             EntityOperation.queue(context, message, EntityOperation.COPY, target.targetFolder.id);
-                        else
+                        else if (EntityFolder.JUNK.equals(target.targetFolder.type))
                             EntityOperation.queue(context, message, EntityOperation.MOVE, target.targetFolder.id, null, null, !target.block);
+                        else {
+                            if (!moves.containsKey(target.targetFolder.id))
+                                moves.put(target.targetFolder.id, new ArrayList<>());
+                            moves.get(target.targetFolder.id).add(message);
+                        }
 
                         if (target.block &&
                                 EntityFolder.JUNK.equals(target.targetFolder.type))
@@ -8236,6 +8260,9 @@ public class FragmentMessages extends FragmentBase
                                     EntityContact.TYPE_JUNK, message.received);
                     }
 
+                    for (Long target : moves.keySet())
+                        EntityOperation.move(context, moves.get(target), target);
+
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
@@ -10428,13 +10455,10 @@ public class FragmentMessages extends FragmentBase
                 try {
                     db.beginTransaction();
 
-                    for (long id : ids) {
-                        EntityMessage message = db.message().getMessage(id);
-                        if (message == null)
-                            continue;
-
-                        EntityOperation.queue(context, message, EntityOperation.DELETE);
-                    }
+                    List<EntityMessage> messages = new ArrayList<>();
+                    for (List<Long> chunk : Helper.chunkList(Helper.fromLongArray(ids), MAX_QUERY))
+                        messages.addAll(db.message().getMessagesByIds(chunk));
+                    EntityOperation.delete(context, messages);
 
                     db.setTransactionSuccessful();
                 } finally {
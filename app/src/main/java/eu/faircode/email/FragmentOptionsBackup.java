@@ -916,8 +916,10 @@ public class FragmentOptionsBackup extends FragmentBase implements SharedPrefere
 
                             if (import_delete) {
                                 EntityAccount delete = db.account().getAccount(account.auth_type, account.user);
-                                if (delete != null)
+                                if (delete != null) {
                                     db.account().deleteAccount(delete.id);
+                                    BatchSize.clear(context, delete.id);
+                                }
                             }
 
                             EntityAccount existing = db.account().getAccountByUUID(account.uuid);
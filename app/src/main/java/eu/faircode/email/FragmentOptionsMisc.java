@@ -184,6 +184,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private SeekBar sbSqliteCache;
     private ImageButton ibSqliteCache;
     private SwitchCompat swLegacyQueries;
+    private SwitchCompat swKeysetQueries;
     private SwitchCompat swCacheLists;
     private SwitchCompat swOauthTabs;
     private TextView tvStartDelay;
@@ -200,6 +201,12 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private SwitchCompat swIgnoreFormattedSize;
     private SwitchCompat swShowRecent;
     private SwitchCompat swModSeq;
+    private SwitchCompat swQResync;
+    private SwitchCompat swIdleManager;
+    private SwitchCompat swNotify;
+    private SwitchCompat swListStatus;
+    private SwitchCompat swESearch;
+    private SwitchCompat swDownloadParallel;
     private SwitchCompat swPreamble;
     private SwitchCompat swUid;
     private SwitchCompat swExpunge;
@@ -264,6 +271,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private Button btnFontMap;
     private Button btnFiles;
     private Button btnUris;
+    private Button btnSyncMetrics;
     private Button btnAllPermissions;
     private TextView tvPermissions;
 
@@ -291,14 +299,14 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             "test1", "test2", "test3", "test4", "test5",
             "emergency_file", "work_manager", "task_description", // "external_storage",
             "sqlite_integrity_check", "wal", "sqlite_checkpoints", "sqlite_analyze", "sqlite_auto_vacuum", "sqlite_sync_extra", "sqlite_cache",
-            "legacy_queries",
+            "legacy_queries", "keyset_queries",
             "cache_lists", "oauth_tabs",
             "start_delay", "chunk_size", "thread_range",
             "autoscroll_editor", "undo_manager",
             "browser_zoom", "fake_dark",
             "ignore_formatted_size",
             "show_recent",
-            "use_modseq", "preamble", "uid_command", "perform_expunge", "uid_expunge",
+            "use_modseq", "use_qresync", "idle_manager", "use_notify", "list_status", "use_esearch", "download_parallel", "preamble", "uid_command", "perform_expunge", "uid_expunge",
             "auth_plain", "auth_login", "auth_ntlm", "auth_sasl", "auth_apop", "use_top", "forget_top",
             "keep_alive_poll", "empty_pool", "idle_done", "fast_fetch",
             "max_backoff_power", "logarithmic_backoff",
@@ -444,6 +452,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         sbSqliteCache = view.findViewById(R.id.sbSqliteCache);
         ibSqliteCache = view.findViewById(R.id.ibSqliteCache);
         swLegacyQueries = view.findViewById(R.id.swLegacyQueries);
+        swKeysetQueries = view.findViewById(R.id.swKeysetQueries);
         swCacheLists = view.findViewById(R.id.swCacheLists);
         swOauthTabs = view.findViewById(R.id.swOauthTabs);
         tvStartDelay = view.findViewById(R.id.tvStartDelay);
@@ -460,6 +469,12 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swIgnoreFormattedSize = view.findViewById(R.id.swIgnoreFormattedSize);
         swShowRecent = view.findViewById(R.id.swShowRecent);
         swModSeq = view.findViewById(R.id.swModSeq);
+        swQResync = view.findViewById(R.id.swQResync);
+        swIdleManager = view.findViewById(R.id.swIdleManager);
+        swNotify = view.findViewById(R.id.swNotify);
+        swListStatus = view.findViewById(R.id.swListStatus);
+        swESearch = view.findViewById(R.id.swESearch);
+        swDownloadParallel = view.findViewById(R.id.swDownloadParallel);
         swPreamble = view.findViewById(R.id.swPreamble);
         swUid = view.findViewById(R.id.swUid);
         swExpunge = view.findViewById(R.id.swExpunge);
@@ -524,6 +539,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         btnFontMap = view.findViewById(R.id.btnFontMap);
         btnFiles = view.findViewById(R.id.btnFiles);
         btnUris = view.findViewById(R.id.btnUris);
+        btnSyncMetrics = view.findViewById(R.id.btnSyncMetrics);
         btnAllPermissions = view.findViewById(R.id.btnAllPermissions);
         tvPermissions = view.findViewById(R.id.tvPermissions);
 
@@ -1292,6 +1308,15 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        swKeysetQueries.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton v, boolean checked) {
+                prefs.edit().putBoolean("keyset_queries", checked).apply();
+                ViewModelMessages model = new ViewModelProvider(getActivity()).get(ViewModelMessages.class);
+                model.clear();
+            }
+        });
+
         swCacheLists.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton v, boolean checked) {
@@ -1438,6 +1463,52 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        swQResync.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("use_qresync", checked).apply();
+                ServiceSynchronize.reload(compoundButton.getContext(), null, true, "use_qresync");
+            }
+        });
+
+        swIdleManager.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("idle_manager", checked).apply();
+                ServiceSynchronize.reload(compoundButton.getContext(), null, true, "idle_manager");
+            }
+        });
+
+        swNotify.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("use_notify", checked).apply();
+                ServiceSynchronize.reload(compoundButton.getContext(), null, true, "use_notify");
+            }
+        });
+
+        swListStatus.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("list_status", checked).apply();
+                ServiceSynchronize.reload(compoundButton.getContext(), null, true, "list_status");
+            }
+        });
+
+        swESearch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("use_esearch", checked).apply();
+            }
+        });
+
+        swDownloadParallel.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("download_parallel", checked).apply();
+            }
+        });
+
         swPreamble.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
@@ -2015,6 +2086,32 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        btnSyncMetrics.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                SpannableStringBuilder ssb = new SpannableStringBuilderEx(SyncMetrics.dump());
+                ssb.setSpan(new RelativeSizeSpan(HtmlHelper.FONT_SMALL), 0, ssb.length(), 0);
+
+                new AlertDialog.Builder(v.getContext())
+                        .setIcon(R.drawable.twotone_info_24)
+                        .setTitle(R.string.title_advanced_sync_metrics)
+                        .setMessage(ssb)
+                        .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                // Do nothing
+                            }
+                        })
+                        .setNeutralButton(R.string.title_reset, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                SyncMetrics.clear();
+                            }
+                        })
+                        .show();
+            }
+        });
+
         btnUris.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -2466,6 +2563,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             sbSqliteCache.setProgress(sqlite_cache);
 
             swLegacyQueries.setChecked(prefs.getBoolean("legacy_queries", false));
+            swKeysetQueries.setChecked(prefs.getBoolean("keyset_queries", false));
             swCacheLists.setChecked(prefs.getBoolean("cache_lists", true));
             swOauthTabs.setChecked(prefs.getBoolean("oauth_tabs", true));
 
@@ -2494,6 +2592,12 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             swIgnoreFormattedSize.setChecked(prefs.getBoolean("ignore_formatted_size", false));
             swShowRecent.setChecked(prefs.getBoolean("show_recent", false));
             swModSeq.setChecked(prefs.getBoolean("use_modseq", true));
+            swQResync.setChecked(prefs.getBoolean("use_qresync", false));
+            swIdleManager.setChecked(prefs.getBoolean("idle_manager", false));
+            swNotify.setChecked(prefs.getBoolean("use_notify", false));
+            swListStatus.setChecked(prefs.getBoolean("list_status", false));
+            swESearch.setChecked(prefs.getBoolean("use_esearch", false));
+            swDownloadParallel.setChecked(prefs.getBoolean("download_parallel", false));
             swPreamble.setChecked(prefs.getBoolean("preamble", false));
             swUid.setChecked(prefs.getBoolean("uid_command", false));
             swExpunge.setChecked(prefs.getBoolean("perform_expunge", true));
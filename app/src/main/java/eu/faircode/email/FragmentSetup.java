@@ -1290,6 +1290,7 @@ public class FragmentSetup extends FragmentBase implements SharedPreferences.OnS
 
                                 DB db = DB.getInstance(context);
                                 db.account().deleteAccount(id);
+                                BatchSize.clear(context, id);
 
                                 return null;
                             }
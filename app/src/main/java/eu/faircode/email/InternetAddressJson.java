@@ -27,6 +27,7 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
 public class InternetAddressJson extends InternetAddress {
+    private String raw;
     private JSONObject json;
 
     private InternetAddressJson() {
@@ -50,6 +51,27 @@ public class InternetAddressJson extends InternetAddress {
         return result;
     }
 
+    public static Address from(String raw) {
+        // Parsed on first use only
+        InternetAddressJson result = new InternetAddressJson();
+        result.raw = raw;
+        return result;
+    }
+
+    static boolean isSame(Address a1, Address a2) {
+        // Same encoding, same address
+        if (a1 instanceof InternetAddressJson && a2 instanceof InternetAddressJson) {
+            String r1 = ((InternetAddressJson) a1).getRaw();
+            String r2 = ((InternetAddressJson) a2).getRaw();
+            return (r1 != null && r1.equals(r2));
+        }
+        return false;
+    }
+
+    private synchronized String getRaw() {
+        return this.raw;
+    }
+
     @Override
     public Object clone() {
         ensureParsed();
@@ -99,6 +121,14 @@ public class InternetAddressJson extends InternetAddress {
     }
 
     private synchronized void ensureParsed() {
+        if (this.raw != null) {
+            try {
+                this.json = new JSONObject(raw);
+            } catch (Throwable ex) {
+                Log.w(ex);
+            }
+            this.raw = null;
+        }
         if (this.json != null) {
             try {
                 String email = json.getString("address");
@@ -108,7 +138,7 @@ public class InternetAddressJson extends InternetAddress {
                 this.setAddress(email);
                 this.setPersonal(personal, StandardCharsets.UTF_8.name());
             } catch (Throwable ex) {
-                Log.e(ex);
+                Log.w(ex);
             }
             this.json = null;
         }
@@ -0,0 +1,257 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2024 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+import androidx.paging.DataSource;
+import androidx.paging.ItemKeyedDataSource;
+import androidx.room.InvalidationTracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Keyset (seek) paging of threaded message lists sorted on time
+// Pages continue from the sort key of an item, so rows are never counted or skipped
+// Importance is walked one value at a time, so the (received, id) comparison stays index friendly
+public class KeysetDataSourceMessages extends ItemKeyedDataSource<KeysetDataSourceMessages.Key, TupleMessageEx> {
+    private final DB db;
+    private final Factory factory;
+    @SuppressWarnings("FieldCanBeLocal")
+    private final InvalidationTracker.Observer observer;
+
+    private static final String[] TABLES = new String[]{
+            EntityMessage.TABLE_NAME, EntityThread.TABLE_NAME,
+            EntityAccount.TABLE_NAME, EntityFolder.TABLE_NAME, EntityIdentity.TABLE_NAME};
+
+    private KeysetDataSourceMessages(Factory factory) {
+        this.db = DB.getInstance(factory.context);
+        this.factory = factory;
+        this.observer = new InvalidationTracker.Observer(TABLES) {
+            @Override
+            public void onInvalidated(@NonNull Set<String> tables) {
+                invalidate();
+            }
+        };
+        if (factory.folder != null) {
+            EntityFolder folder = db.folder().getFolder(factory.folder);
+            Map<String, long[]> keys = DB.getFolderScope(factory.folder, folder == null ? null : folder.account);
+            for (String table : keys.keySet())
+                observer.setKeys(table, keys.get(table));
+        }
+        // The data source keeps the observer alive
+        db.getInvalidationTracker().addWeakObserver(observer);
+    }
+
+    @Override
+    public void loadInitial(@NonNull LoadInitialParams<Key> params, @NonNull LoadInitialCallback<TupleMessageEx> callback) {
+        Key key = params.requestedInitialKey;
+        List<TupleMessageEx> list = Collections.emptyList();
+        try {
+            // Include the item of the key
+            list = load(key == null ? null : new Key(key.importance, key.received,
+                    factory.ascending ? key.id - 1 : key.id + 1), false, params.requestedLoadSize);
+            if (key != null && list.size() == 0)
+                list = load(null, false, params.requestedLoadSize);
+        } catch (Throwable ex) {
+            Log.w(ex);
+        }
+        callback.onResult(list);
+    }
+
+    @Override
+    public void loadAfter(@NonNull LoadParams<Key> params, @NonNull LoadCallback<TupleMessageEx> callback) {
+        callback.onResult(load(params.key, false, params.requestedLoadSize));
+    }
+
+    @Override
+    public void loadBefore(@NonNull LoadParams<Key> params, @NonNull LoadCallback<TupleMessageEx> callback) {
+        List<TupleMessageEx> list = load(params.key, true, params.requestedLoadSize);
+        Collections.reverse(list);
+        callback.onResult(list);
+    }
+
+    @NonNull
+    @Override
+    public Key getKey(@NonNull TupleMessageEx item) {
+        int importance = (item.importance == null ? EntityMessage.PRIORITIY_NORMAL : item.importance);
+        return new Key(importance, item.received, item.id);
+    }
+
+    List<TupleMessageEx> loadPage(Key key, int limit) {
+        return load(key, false, limit);
+    }
+
+    Pair<Long, Long> getPrevNext(long id, int chunk) {
+        // Previous is the item above, next is the item below
+        TupleMessageEx prev = null;
+        Key key = null;
+        while (true) {
+            List<TupleMessageEx> page = load(key, false, chunk);
+            for (int i = 0; i < page.size(); i++) {
+                TupleMessageEx item = page.get(i);
+                if (item.id == id) {
+                    TupleMessageEx next = null;
+                    if (i + 1 < page.size())
+                        next = page.get(i + 1);
+                    else {
+                        List<TupleMessageEx> after = load(getKey(item), false, 1);
+                        if (after.size() > 0)
+                            next = after.get(0);
+                    }
+                    return new Pair<>(
+                            prev == null ? null : prev.id,
+                            next == null ? null : next.id);
+                }
+                prev = item;
+            }
+
+            if (page.size() < chunk)
+                return null;
+            key = getKey(page.get(page.size() - 1));
+        }
+    }
+
+    private List<TupleMessageEx> load(Key key, boolean before, int limit) {
+        // Lists are sorted on descending importance first
+        // Before walks towards low importance, after towards high importance
+        boolean greater = (factory.ascending != before);
+        int importance = (key == null
+                ? (before ? EntityMessage.PRIORITIY_LOW : EntityMessage.PRIORITIY_HIGH)
+                : key.importance);
+
+        List<TupleMessageEx> result = new ArrayList<>();
+        while (importance >= EntityMessage.PRIORITIY_LOW &&
+                importance <= EntityMessage.PRIORITIY_HIGH &&
+                result.size() < limit) {
+            long received;
+            long id;
+            if (key == null || key.importance != importance) {
+                received = (greater ? Long.MIN_VALUE : Long.MAX_VALUE);
+                id = received;
+            } else {
+                received = key.received;
+                id = key.id;
+            }
+
+            int count = limit - result.size();
+            if (factory.folder == null) {
+                if (greater)
+                    result.addAll(db.message().keysetUnifiedThreadsAfter(
+                            factory.type,
+                            factory.filter_seen, factory.filter_unflagged, factory.filter_unknown,
+                            factory.filter_snoozed, factory.filter_deleted, factory.filter_language,
+                            importance, received, id, count));
+                else
+                    result.addAll(db.message().keysetUnifiedThreadsBefore(
+                            factory.type,
+                            factory.filter_seen, factory.filter_unflagged, factory.filter_unknown,
+                            factory.filter_snoozed, factory.filter_deleted, factory.filter_language,
+                            importance, received, id, count));
+            } else {
+                if (greater)
+                    result.addAll(db.message().keysetFolderThreadsAfter(
+                            factory.folder,
+                            factory.filter_seen, factory.filter_unflagged, factory.filter_unknown,
+                            factory.filter_snoozed, factory.filter_deleted, factory.filter_language,
+                            importance, received, id, count));
+                else
+                    result.addAll(db.message().keysetFolderThreadsBefore(
+                            factory.folder,
+                            factory.filter_seen, factory.filter_unflagged, factory.filter_unknown,
+                            factory.filter_snoozed, factory.filter_deleted, factory.filter_language,
+                            importance, received, id, count));
+            }
+
+            importance += (before ? 1 : -1);
+        }
+
+        return result;
+    }
+
+    static class Key {
+        final int importance;
+        final long received;
+        final long id;
+
+        Key(int importance, long received, long id) {
+            this.importance = importance;
+            this.received = received;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                return (this.importance == other.importance &&
+                        this.received == other.received &&
+                        this.id == other.id);
+            } else
+                return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(importance, received, id);
+        }
+    }
+
+    static class Factory extends DataSource.Factory<Key, TupleMessageEx> {
+        private final Context context;
+        private final String type;
+        private final Long folder;
+        private final boolean ascending;
+        private final boolean filter_seen;
+        private final boolean filter_unflagged;
+        private final boolean filter_unknown;
+        private final boolean filter_snoozed;
+        private final boolean filter_deleted;
+        private final String filter_language;
+
+        Factory(Context context,
+                String type, Long folder, boolean ascending,
+                boolean filter_seen, boolean filter_unflagged, boolean filter_unknown,
+                boolean filter_snoozed, boolean filter_deleted, String filter_language) {
+            this.context = context.getApplicationContext();
+            this.type = type;
+            this.folder = folder;
+            this.ascending = ascending;
+            this.filter_seen = filter_seen;
+            this.filter_unflagged = filter_unflagged;
+            this.filter_unknown = filter_unknown;
+            this.filter_snoozed = filter_snoozed;
+            this.filter_deleted = filter_deleted;
+            this.filter_language = filter_language;
+        }
+
+        @NonNull
+        @Override
+        public DataSource<Key, TupleMessageEx> create() {
+            return new KeysetDataSourceMessages(this);
+        }
+    }
+}
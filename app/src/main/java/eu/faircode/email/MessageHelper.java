@@ -82,6 +82,7 @@ import org.simplejavamail.outlookmessageparser.model.OutlookMessage;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -91,8 +92,11 @@ import java.io.FileReader;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.net.IDN;
 import java.net.URLDecoder;
@@ -199,6 +203,8 @@ public class MessageHelper {
     private static final int MAX_LABELS = 32;
     private static final long ATTACHMENT_PROGRESS_UPDATE = 1500L; // milliseconds
     private static final int MAX_META_EXCERPT = 1024; // characters
+    private static final int MIN_STREAM_SIZE = 1024 * 1024; // bytes
+    private static final int MAX_STREAM_EXCERPT = 64 * 1024; // characters
     private static final int FORMAT_FLOWED_LINE_LENGTH = 72; // characters
     private static final int MAX_DIAGNOSTIC = 250; // characters
     private static final int DKIM_MIN_KEY_LENGTH = 1024; //  bits
@@ -1697,9 +1703,13 @@ public class MessageHelper {
     }
 
     String getThreadId(Context context, long account, long folder, long uid, long received) throws MessagingException {
+        return getThreadId(context, account, folder, uid, received, null);
+    }
+
+    String getThreadId(Context context, long account, long folder, long uid, long received, ThreadIndex index) throws MessagingException {
         if (threadId == null)
             if (true)
-                threadId = _getThreadIdAlt(context, account, folder, uid, received);
+                threadId = _getThreadIdAlt(context, account, folder, uid, received, index);
             else
                 threadId = _getThreadId(context, account, folder, uid);
         return threadId;
@@ -1792,7 +1802,7 @@ public class MessageHelper {
         return thread;
     }
 
-    private String _getThreadIdAlt(Context context, long account, long folder, long uid, long received) throws MessagingException {
+    private String _getThreadIdAlt(Context context, long account, long folder, long uid, long received, ThreadIndex index) throws MessagingException {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         if (imessage instanceof GmailMessage) {
@@ -1874,9 +1884,13 @@ public class MessageHelper {
         Long start = (received == 0 ? null : received - range * 24 * 3600 * 1000L);
         Long end = (received == 0 ? null : received + range * 24 * 3600 * 1000L);
 
-        List<TupleThreadInfo> infos = (all.size() == 0
-                ? new ArrayList<>()
-                : db.message().getThreadInfo(account, all, start, end));
+        List<TupleThreadInfo> infos;
+        if (all.size() == 0)
+            infos = new ArrayList<>();
+        else if (index == null)
+            infos = db.message().getThreadInfo(account, all, start, end);
+        else
+            infos = index.get(context, all, start, end);
 
         // References, In-Reply-To (sent before)
         for (TupleThreadInfo info : infos)
@@ -1933,16 +1947,26 @@ public class MessageHelper {
         for (TupleThreadInfo info : infos)
             if (info.isReferencing(msgid) && !thread.equals(info.thread)) {
                 Log.w("Updating before thread from " + info.thread + " to " + thread);
-                db.message().updateMessageThread(account, info.thread, thread, null);
+                if (index == null)
+                    db.message().updateMessageThread(account, info.thread, thread, null);
+                else if (info.thread != null)
+                    index.merge(info.thread, thread);
             }
 
         // Sent after
         for (TupleThreadInfo info : infos)
             if (info.isReferenced(msgid) && !thread.equals(info.thread)) {
                 Log.w("Updating after thread from " + info.thread + " to " + thread);
-                db.message().updateMessageThread(account, info.thread, thread, null);
+                if (index == null)
+                    db.message().updateMessageThread(account, info.thread, thread, null);
+                else if (info.thread != null)
+                    index.merge(info.thread, thread);
             }
 
+        // Merges of the index are committed later
+        if (index != null)
+            thread = index.find(thread);
+
         boolean subject_threading = prefs.getBoolean("subject_threading", false);
         if (subject_threading && !isReport()) {
             String sender = getSortKey(getFrom());
@@ -3856,26 +3880,7 @@ public class MessageHelper {
 
             StringBuilder sb = new StringBuilder();
 
-            List<PartHolder> parts = new ArrayList<>();
-
-            Integer plain = isPlainOnly();
-            if (plain != null && (plain & 1) != 0)
-                // Plain only
-                parts.addAll(text);
-            else {
-                // Either plain and HTML or HTML only
-                boolean hasPlain = (plain != null && (plain & 0x80) != 0);
-                for (PartHolder h : text)
-                    if (plain_text && hasPlain) {
-                        if (h.isPlainText())
-                            parts.add(h);
-                    } else {
-                        if (h.isHtml())
-                            parts.add(h);
-                    }
-            }
-
-            parts.addAll(extra);
+            List<PartHolder> parts = getBodyParts(plain_text);
 
             boolean first = true;
             for (PartHolder h : parts) {
@@ -4214,6 +4219,126 @@ public class MessageHelper {
             return sb.toString();
         }
 
+        private List<PartHolder> getBodyParts(boolean plain_text) {
+            List<PartHolder> parts = new ArrayList<>();
+
+            Integer plain = isPlainOnly();
+            if (plain != null && (plain & 1) != 0)
+                // Plain only
+                parts.addAll(text);
+            else {
+                // Either plain and HTML or HTML only
+                boolean hasPlain = (plain != null && (plain & 0x80) != 0);
+                for (PartHolder h : text)
+                    if (plain_text && hasPlain) {
+                        if (h.isPlainText())
+                            parts.add(h);
+                    } else {
+                        if (h.isHtml())
+                            parts.add(h);
+                    }
+            }
+
+            parts.addAll(extra);
+
+            return parts;
+        }
+
+        String writeHtml(Context context, File file) throws MessagingException, IOException {
+            return writeHtml(context, file, false);
+        }
+
+        // Decode a large single part body directly into the message file
+        // Returns an excerpt for the preview and language detection,
+        // or null if the body needs the charset heuristics of getHtml
+        String writeHtml(Context context, File file, boolean plain_text) throws MessagingException, IOException {
+            List<PartHolder> parts = getBodyParts(plain_text);
+            if (parts.size() != 1)
+                return null;
+
+            PartHolder h = parts.get(0);
+            if (!h.isHtml() && !h.isPlainText())
+                return null;
+            if (h.part.getSize() < MIN_STREAM_SIZE)
+                return null;
+            if (h.isPlainText() && "flowed".equalsIgnoreCase(h.contentType.getParameter("format")))
+                return null;
+
+            // Only reliably declared character sets
+            String charset = h.contentType.getParameter("charset");
+            if (TextUtils.isEmpty(charset))
+                return null;
+            Charset cs;
+            try {
+                cs = Charset.forName(charset);
+            } catch (Throwable ex) {
+                Log.w(ex);
+                return null;
+            }
+            if (StandardCharsets.US_ASCII.equals(cs) ||
+                    StandardCharsets.ISO_8859_1.equals(cs) ||
+                    CHARSET16.contains(cs))
+                return null;
+
+            Log.i("Streaming body size=" + h.part.getSize() + " type=" + h.contentType);
+
+            StringBuilder excerpt = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(h.part.getInputStream(), cs));
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                if (h.isHtml()) {
+                    int len;
+                    char[] buffer = new char[Helper.BUFFER_SIZE];
+                    while ((len = reader.read(buffer)) != -1) {
+                        writer.write(buffer, 0, len);
+                        if (excerpt.length() < MAX_STREAM_EXCERPT)
+                            excerpt.append(buffer, 0, Math.min(len, MAX_STREAM_EXCERPT - excerpt.length()));
+                    }
+                } else {
+                    String line;
+                    StringBuilder sb = new StringBuilder();
+                    writer.write("<div x-plain=\"true\">");
+                    while ((line = reader.readLine()) != null) {
+                        if (sb.length() == 0 && excerpt.length() == 0 && isHtmlDocument(line))
+                            throw new IllegalArgumentException("HTML as plain text");
+                        sb.append(line).append('\n');
+                        if (sb.length() >= MAX_STREAM_EXCERPT) {
+                            writePlain(writer, sb, cs, excerpt);
+                            sb.setLength(0);
+                        }
+                    }
+                    writePlain(writer, sb, cs, excerpt);
+                    writer.write("</div>");
+                }
+            } catch (IllegalArgumentException ex) {
+                Log.i(ex.getMessage());
+                return null;
+            } catch (DecodingException | UnsupportedEncodingException ex) {
+                Log.e(ex);
+                warnings.add(Log.formatThrowable(ex, false));
+                return null;
+            }
+
+            return excerpt.toString();
+        }
+
+        private void writePlain(Writer writer, StringBuilder sb, Charset cs, StringBuilder excerpt) throws IOException {
+            if (sb.length() == 0)
+                return;
+            String result = sb.toString();
+            if (StandardCharsets.UTF_8.equals(cs))
+                result = CharsetHelper.utf8toW1252(result);
+            String html = HtmlHelper.formatPlainText(result);
+            writer.write(html);
+            if (excerpt.length() < MAX_STREAM_EXCERPT)
+                excerpt.append(html, 0, Math.min(html.length(), MAX_STREAM_EXCERPT - excerpt.length()));
+        }
+
+        private boolean isHtmlDocument(String line) {
+            String start = line.trim().toUpperCase(Locale.ROOT);
+            return (start.startsWith(DOCTYPE) ||
+                    start.startsWith(HTML_START.toUpperCase(Locale.ROOT)));
+        }
+
         Report getReport() throws MessagingException, IOException {
             for (PartHolder h : extra)
                 if (h.isReport()) {
@@ -4256,6 +4381,10 @@ public class MessageHelper {
         }
 
         void downloadAttachment(Context context, EntityAttachment local, EntityFolder folder) throws IOException, MessagingException {
+            downloadAttachment(context, local, folder, false);
+        }
+
+        void downloadAttachment(Context context, EntityAttachment local, EntityFolder folder, boolean parsed) throws IOException, MessagingException {
             List<EntityAttachment> remotes = getAttachments();
 
             // Some servers order attachments randomly
@@ -4264,13 +4393,15 @@ public class MessageHelper {
             boolean warning = false;
 
             // Get attachment by position
+            // Parts parsed from the raw message are in body structure order,
+            // but their decoded sizes can differ from the server reported sizes
             if (local.sequence <= remotes.size()) {
                 EntityAttachment remote = remotes.get(local.sequence - 1);
                 if (Objects.equals(remote.name, local.name) &&
                         Objects.equals(remote.type, local.type) &&
                         Objects.equals(remote.disposition, local.disposition) &&
                         Objects.equals(remote.cid, local.cid) &&
-                        Objects.equals(remote.size, local.size))
+                        (parsed || Objects.equals(remote.size, local.size)))
                     index = local.sequence - 1;
             }
 
@@ -5933,7 +6064,8 @@ public class MessageHelper {
             return false;
 
         for (int i = 0; i < a1.length; i++)
-            if (!a1[i].toString().equals(a2[i].toString()))
+            if (!InternetAddressJson.isSame(a1[i], a2[i]) &&
+                    !a1[i].toString().equals(a2[i].toString()))
                 return false;
 
         return true;
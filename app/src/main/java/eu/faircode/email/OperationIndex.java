@@ -0,0 +1,148 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2024 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Pending operations of a folder indexed by what they have in common
+// Similar and superseded operations are found in constant time using the typed argument columns
+public class OperationIndex {
+    private final Map<Long, String> similarKey = new HashMap<>();
+    private final Map<Long, String> supersedeKey = new HashMap<>();
+    private final Map<String, Map<Long, TupleOperationEx>> similar = new HashMap<>();
+    private final Map<String, Map<Long, TupleOperationEx>> supersede = new HashMap<>();
+
+    OperationIndex(int protocol, List<TupleOperationEx> ops) {
+        for (TupleOperationEx op : ops) {
+            put(similar, similarKey, op, getSimilarKey(protocol, op));
+            put(supersede, supersedeKey, op, getSupersedeKey(op));
+        }
+    }
+
+    List<TupleOperationEx> getSimilar(TupleOperationEx op) {
+        List<TupleOperationEx> result = new ArrayList<>();
+        String key = similarKey.get(op.id);
+        if (key != null)
+            for (TupleOperationEx next : similar.get(key).values())
+                if (!next.id.equals(op.id))
+                    result.add(next);
+        return result;
+    }
+
+    boolean isSuperseded(TupleOperationEx op) {
+        // Only an add, fetch or download can be superseded by a later operation
+        if (!EntityOperation.ADD.equals(op.name) &&
+                !EntityOperation.FETCH.equals(op.name) &&
+                !EntityOperation.DOWNLOAD.equals(op.name))
+            return false;
+
+        String key = supersedeKey.get(op.id);
+        if (key == null)
+            return false;
+        Map<Long, TupleOperationEx> ops = supersede.get(key);
+        return (ops.size() > (ops.containsKey(op.id) ? 1 : 0));
+    }
+
+    void remove(TupleOperationEx op) {
+        remove(similar, similarKey.remove(op.id), op);
+        remove(supersede, supersedeKey.remove(op.id), op);
+    }
+
+    private static String getSimilarKey(int protocol, TupleOperationEx op) {
+        switch (op.name) {
+            case EntityOperation.SEEN:
+            case EntityOperation.FLAG:
+                // Same flag
+                if (protocol == EntityAccount.TYPE_IMAP && op.flag != null)
+                    return op.name + ":" + op.flag;
+                return null;
+
+            case EntityOperation.MOVE:
+                // Same target
+                if (op.target == null)
+                    return null;
+                if (protocol == EntityAccount.TYPE_IMAP)
+                    return op.name + ":" + op.target + ":" + op.hasOption(4);
+                else
+                    return op.name + ":" + op.target;
+
+            case EntityOperation.DELETE:
+                return op.name;
+
+            case EntityOperation.ADD:
+                // Cross account moves/copies with the same target, auto read and copy flag
+                if (protocol != EntityAccount.TYPE_IMAP || op.target == null)
+                    return null;
+                return op.name + ":" + op.target + ":" + op.hasOption(1) + ":" + op.hasOption(2);
+
+            default:
+                return null;
+        }
+    }
+
+    private static String getSupersedeKey(TupleOperationEx op) {
+        switch (op.name) {
+            case EntityOperation.ADD:
+            case EntityOperation.DELETE:
+                // Same message
+                return (op.message == null ? null : "msg:" + op.message);
+
+            case EntityOperation.FETCH:
+                // Same uid, invalidate, delete flag
+                if (op.uid == null)
+                    return null;
+                return op.name + ":" + op.uid + ":" + op.hasOption(1) + ":" + op.hasOption(2);
+
+            case EntityOperation.DOWNLOAD:
+                // Same uid
+                return (op.uid == null ? null : op.name + ":" + op.uid);
+
+            default:
+                return null;
+        }
+    }
+
+    private static void put(Map<String, Map<Long, TupleOperationEx>> map, Map<Long, String> keys,
+                            TupleOperationEx op, String key) {
+        if (key == null)
+            return;
+        keys.put(op.id, key);
+        Map<Long, TupleOperationEx> ops = map.get(key);
+        if (ops == null) {
+            // Insertion order is the order of execution
+            ops = new LinkedHashMap<>();
+            map.put(key, ops);
+        }
+        ops.put(op.id, op);
+    }
+
+    private static void remove(Map<String, Map<Long, TupleOperationEx>> map, String key, TupleOperationEx op) {
+        if (key == null)
+            return;
+        Map<Long, TupleOperationEx> ops = map.get(key);
+        ops.remove(op.id);
+        if (ops.size() == 0)
+            map.remove(key);
+    }
+}
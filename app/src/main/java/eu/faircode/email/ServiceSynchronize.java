@@ -62,8 +62,11 @@ import com.sun.mail.iap.ProtocolException;
 import com.sun.mail.iap.Response;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.IdleManager;
+import com.sun.mail.imap.ResyncData;
 import com.sun.mail.imap.protocol.IMAPProtocol;
 import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.Status;
 
 import net.openid.appauth.AuthState;
 
@@ -84,6 +87,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Semaphore;
@@ -100,6 +104,7 @@ import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Quota;
 import javax.mail.ReadOnlyFolderException;
+import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.StoreClosedException;
 import javax.mail.event.FolderAdapter;
@@ -135,6 +140,10 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
             Helper.getBackgroundExecutor(1, "sync");
     private static final ExecutorService executorNotify =
             Helper.getBackgroundExecutor(1, "notify");
+    private static final ExecutorService executorIdle =
+            Helper.getBackgroundExecutor(0, "idle");
+
+    private static IdleManager idleManager = null;
 
     static final int DEFAULT_BACKOFF_POWER = 3; // 2^3=8 seconds (totally 8+2x20=48 seconds)
 
@@ -672,6 +681,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
 
                             DB db = DB.getInstance(ServiceSynchronize.this);
                             db.account().deleteAccount(accountNetworkState.accountState.id);
+                            BatchSize.clear(ServiceSynchronize.this, accountNetworkState.accountState.id);
 
                             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                                 NotificationManager nm = Helper.getSystemService(ServiceSynchronize.this, NotificationManager.class);
@@ -1098,6 +1108,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
 
         TTSHelper.shutdown();
 
+        stopIdleManager();
+
         try {
             stopForeground(true);
         } catch (Throwable ex) {
@@ -1656,12 +1668,17 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
 
                 final ObjectHolder<TwoStateOwner> cowner = new ObjectHolder<>();
                 final ExecutorService executor = Helper.getBackgroundExecutor(1, "operation." + account.id);
+                final ExecutorService executorFeed = Helper.getBackgroundExecutor(1, "feed." + account.id);
 
                 // Debug
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
                 boolean subscriptions = prefs.getBoolean("subscriptions", false);
                 boolean keep_alive_poll = prefs.getBoolean("keep_alive_poll", false);
                 boolean empty_pool = prefs.getBoolean("empty_pool", true);
+                boolean use_qresync = prefs.getBoolean("use_qresync", false);
+                boolean idle_manager = prefs.getBoolean("idle_manager", false);
+                boolean use_notify = prefs.getBoolean("use_notify", false);
+                boolean list_status = prefs.getBoolean("list_status", false);
                 boolean debug = (prefs.getBoolean("debug", false) || BuildConfig.DEBUG);
 
                 final EmailService iservice = new EmailService(this, account, EmailService.PURPOSE_USE, debug);
@@ -1671,6 +1688,22 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                 if (account.protocol != EntityAccount.TYPE_IMAP)
                     iservice.setLeaveOnServer(account.leave_on_server);
 
+                // Plain connections use a socket factory, which doesn't provide socket channels
+                // Socket channels are not bound to the active network and don't use a proxy
+                boolean bind_socket = (prefs.getBoolean("bind_socket", false) &&
+                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+                final boolean multiplex = (idle_manager &&
+                        account.protocol == EntityAccount.TYPE_IMAP &&
+                        account.encryption != EmailService.ENCRYPTION_NONE &&
+                        !bind_socket &&
+                        !ConnectionHelper.isProxied(account.host, account.port));
+                if (multiplex)
+                    iservice.setSocketChannels(true);
+
+                // NOTIFY is set up on the store connection, which should not be handed out to folders
+                if (use_notify && account.protocol == EntityAccount.TYPE_IMAP)
+                    iservice.setSeparateStoreConnection(true);
+
                 if (account.keep_alive_noop) {
                     int timeout = prefs.getInt("timeout", EmailService.DEFAULT_CONNECT_TIMEOUT);
                     iservice.setRestartIdleInterval(timeout * 2 * 6); // 20 x 2 x 6 = 4 min
@@ -1757,6 +1790,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
 
                 final long group = Thread.currentThread().getId();
                 final Map<EntityFolder, IMAPFolder> mapFolders = new LinkedHashMap<>();
+                final Map<Long, Status> mapStatus = new HashMap<>();
                 List<Thread> idlers = new ArrayList<>();
                 try {
                     // Initiate connection
@@ -1808,6 +1842,14 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             iservice.hasCapability("UTF8=ACCEPT") ||
                                     iservice.hasCapability("UTF8=ONLY");
                     final boolean capNotify = iservice.hasCapability("NOTIFY");
+                    // https://datatracker.ietf.org/doc/html/rfc7162#section-3.2
+                    final boolean capQresync = (use_qresync && iservice.hasCapability("QRESYNC"));
+                    // All idle folders are watched by one selector thread
+                    final IdleManager im = (multiplex && capIdle ? getIdleManager() : null);
+                    // https://tools.ietf.org/html/rfc5465
+                    final boolean notifying = (use_notify && capNotify && capIdle && sync);
+                    // https://datatracker.ietf.org/doc/html/rfc5819
+                    final boolean capListStatus = (list_status && iservice.hasCapability("LIST-STATUS"));
 
                     String capabilities = TextUtils.join(" ", iservice.getCapabilities());
                     EntityLog.log(this, EntityLog.Type.Protocol, account, capabilities);
@@ -1928,10 +1970,20 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                     if (folders.size() > 0)
                         Collections.sort(folders, folders.get(0).getComparator(this));
 
+                    List<String> notified = new ArrayList<>();
                     for (final EntityFolder folder : folders) {
                         if (folder.selectable && folder.synchronize && !folder.poll && capIdle && sync) {
                             Log.i(account.name + " sync folder " + folder.name);
 
+                            if (notifying) {
+                                // Changes are reported on the store connection
+                                mapFolders.put(folder, null);
+                                notified.add(folder.name);
+                                db.folder().setFolderState(folder.id, null);
+                                EntityOperation.sync(this, folder.id, false, force && !forced);
+                                continue;
+                            }
+
                             db.folder().setFolderState(folder.id, "connecting");
 
                             final IMAPFolder ifolder = (IMAPFolder) iservice.getStore().getFolder(folder.name);
@@ -1939,13 +1991,13 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             try {
                                 if (BuildConfig.DEBUG && "Postausgang".equals(folder.name))
                                     throw new ReadOnlyFolderException(ifolder);
-                                ifolder.open(Folder.READ_WRITE);
+                                ifolder.open(Folder.READ_WRITE, capQresync ? ResyncData.QRESYNC : null);
                                 folder.read_only = ifolder.getUIDNotSticky();
                                 db.folder().setFolderReadOnly(folder.id, folder.read_only);
                             } catch (ReadOnlyFolderException ex) {
                                 Log.w(folder.name + " read only");
                                 try {
-                                    ifolder.open(Folder.READ_ONLY);
+                                    ifolder.open(Folder.READ_ONLY, capQresync ? ResyncData.QRESYNC : null);
                                     folder.read_only = true;
                                     db.folder().setFolderReadOnly(folder.id, folder.read_only);
                                 } catch (Throwable ex1) {
@@ -2033,6 +2085,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " added " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        if (im != null)
+                                            watch(im, account, folder, ifolder, state);
                                         if (wlMessage.isHeld())
                                             wlMessage.release();
                                         else if (!isOptimizing && !BuildConfig.PLAY_STORE_RELEASE)
@@ -2053,6 +2107,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " removed " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        if (im != null)
+                                            watch(im, account, folder, ifolder, state);
                                         if (wlMessage.isHeld())
                                             wlMessage.release();
                                         else if (!isOptimizing && !BuildConfig.PLAY_STORE_RELEASE)
@@ -2079,6 +2135,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " changed " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        if (im != null)
+                                            watch(im, account, folder, ifolder, state);
                                         if (wlMessage.isHeld())
                                             wlMessage.release();
                                         else if (!isOptimizing && !BuildConfig.PLAY_STORE_RELEASE)
@@ -2088,44 +2146,46 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             });
 
                             // Idle folder
-                            Thread idler = new Thread(new RunnableEx("idle") {
-                                @Override
-                                public void delegate() {
-                                    try {
-                                        Log.i(folder.name + " start idle");
-                                        while (ifolder.isOpen() && state.isRunning() && state.isRecoverable()) {
-                                            Log.i(folder.name + " do idle");
-                                            ifolder.idle(false);
-                                            state.activity();
+                            if (im == null) {
+                                Thread idler = new Thread(new RunnableEx("idle") {
+                                    @Override
+                                    public void delegate() {
+                                        try {
+                                            Log.i(folder.name + " start idle");
+                                            while (ifolder.isOpen() && state.isRunning() && state.isRecoverable()) {
+                                                Log.i(folder.name + " do idle");
+                                                ifolder.idle(false);
+                                                state.activity();
+                                            }
+                                        } catch (Throwable ex) {
+                                            /*
+                                                javax.mail.FolderClosedException: * BYE Jakarta Mail Exception: java.net.SocketTimeoutException: Read timed out
+                                                    at com.sun.mail.imap.IMAPFolder.handleIdle(SourceFile:252)
+                                                    at com.sun.mail.imap.IMAPFolder.idle(SourceFile:7)
+                                                    at eu.faircode.email.ServiceSynchronize$21.delegate(SourceFile:78)
+                                                    at eu.faircode.email.RunnableEx.run(SourceFile:1)
+                                                    at java.lang.Thread.run(Thread.java:1012)
+                                                ... javax.mail.StoreClosedException: NOOP INBOX
+                                                javax.mail.StoreClosedException: NOOP INBOX
+                                                    at eu.faircode.email.ServiceSynchronize.monitorAccount(SourceFile:151)
+                                                    at eu.faircode.email.ServiceSynchronize.access$1200(Unknown Source:0)
+                                                    at eu.faircode.email.ServiceSynchronize$4$2.delegate(SourceFile:15)
+                                                    at eu.faircode.email.RunnableEx.run(SourceFile:1)
+                                                    at java.lang.Thread.run(Thread.java:1012)
+                                             */
+                                            Log.e(folder.name, ex);
+                                            EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                                    account.name + "/" + folder.name + " idle " + Log.formatThrowable(ex, false));
+                                            state.error(new FolderClosedException(ifolder, "IDLE", new Exception(ex)));
+                                        } finally {
+                                            Log.i(folder.name + " end idle");
                                         }
-                                    } catch (Throwable ex) {
-                                        /*
-                                            javax.mail.FolderClosedException: * BYE Jakarta Mail Exception: java.net.SocketTimeoutException: Read timed out
-                                                at com.sun.mail.imap.IMAPFolder.handleIdle(SourceFile:252)
-                                                at com.sun.mail.imap.IMAPFolder.idle(SourceFile:7)
-                                                at eu.faircode.email.ServiceSynchronize$21.delegate(SourceFile:78)
-                                                at eu.faircode.email.RunnableEx.run(SourceFile:1)
-                                                at java.lang.Thread.run(Thread.java:1012)
-                                            ... javax.mail.StoreClosedException: NOOP INBOX
-                                            javax.mail.StoreClosedException: NOOP INBOX
-                                                at eu.faircode.email.ServiceSynchronize.monitorAccount(SourceFile:151)
-                                                at eu.faircode.email.ServiceSynchronize.access$1200(Unknown Source:0)
-                                                at eu.faircode.email.ServiceSynchronize$4$2.delegate(SourceFile:15)
-                                                at eu.faircode.email.RunnableEx.run(SourceFile:1)
-                                                at java.lang.Thread.run(Thread.java:1012)
-                                         */
-                                        Log.e(folder.name, ex);
-                                        EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
-                                                account.name + "/" + folder.name + " idle " + Log.formatThrowable(ex, false));
-                                        state.error(new FolderClosedException(ifolder, "IDLE", new Exception(ex)));
-                                    } finally {
-                                        Log.i(folder.name + " end idle");
                                     }
-                                }
-                            }, "idler." + folder.id);
-                            idler.setPriority(THREAD_PRIORITY_BACKGROUND);
-                            idler.start();
-                            idlers.add(idler);
+                                }, "idler." + folder.id);
+                                idler.setPriority(THREAD_PRIORITY_BACKGROUND);
+                                idler.start();
+                                idlers.add(idler);
+                            }
 
                             EntityOperation.sync(this, folder.id, false, force && !forced);
 
@@ -2166,6 +2226,9 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                         return null;
                                     }
                                 });
+
+                            if (im != null)
+                                watch(im, account, folder, ifolder, state);
                         } else {
                             mapFolders.put(folder, null);
                             db.folder().setFolderState(folder.id, null);
@@ -2176,6 +2239,37 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                         }
                     }
 
+                    if (notified.size() > 0) {
+                        EntityLog.log(this, EntityLog.Type.Account, account,
+                                account.name + " NOTIFY folders=" + notified.size());
+                        ((IMAPStore) istore).notifyStatus(notified.toArray(new String[0]));
+
+                        // Idle store
+                        Thread idler = new Thread(new RunnableEx("idle") {
+                            @Override
+                            public void delegate() {
+                                try {
+                                    Log.i(account.name + " start idle");
+                                    while (state.isRunning() && state.isRecoverable()) {
+                                        Log.i(account.name + " do idle");
+                                        ((IMAPStore) istore).idle();
+                                        state.activity();
+                                    }
+                                } catch (Throwable ex) {
+                                    Log.e(account.name, ex);
+                                    EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, account,
+                                            account.name + " idle " + Log.formatThrowable(ex, false));
+                                    state.error(new StoreClosedException(istore, "IDLE", new Exception(ex)));
+                                } finally {
+                                    Log.i(account.name + " end idle");
+                                }
+                            }
+                        }, "idler." + account.id);
+                        idler.setPriority(THREAD_PRIORITY_BACKGROUND);
+                        idler.start();
+                        idlers.add(idler);
+                    }
+
                     forced = true;
 
                     final long serial = state.getSerial();
@@ -2187,35 +2281,49 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             cowner.value = new TwoStateOwner(ServiceSynchronize.this, account.name);
                             cowner.value.start();
 
-                            db.operation().liveOperations(account.id).observe(cowner.value, new Observer<List<TupleOperationEx>>() {
+                            db.operation().liveOperationWatermark(account.id).observe(cowner.value, new Observer<TupleOperationWatermark>() {
                                 private DutyCycle dc = new DutyCycle(account.name + " operations");
-                                private List<Long> handling = new ArrayList<>();
+                                private long queued = 0; // main thread
+                                private long delivered = 0; // feed thread
                                 private final Map<TupleOperationEx.PartitionKey, List<TupleOperationEx>> partitions = new HashMap<>();
 
                                 private final PowerManager.WakeLock wlOperations = pm.newWakeLock(
                                         PowerManager.PARTIAL_WAKE_LOCK, BuildConfig.APPLICATION_ID + ":operations." + account.id);
 
                                 @Override
-                                public void onChanged(final List<TupleOperationEx> _operations) {
-                                    // Get new operations
-                                    List<Long> all = new ArrayList<>();
-                                    Map<Long, List<TupleOperationEx>> added = new LinkedHashMap<>();
-                                    for (TupleOperationEx op : _operations) {
-                                        all.add(op.id);
-                                        if (!handling.contains(op.id)) {
-                                            if (!added.containsKey(op.folder))
-                                                added.put(op.folder, new ArrayList<>());
-                                            added.get(op.folder).add(op);
-                                        }
-                                    }
-                                    handling = all;
+                                public void onChanged(TupleOperationWatermark watermark) {
+                                    int pending = (watermark == null || watermark.pending == null ? 0 : watermark.pending);
+                                    long last = (watermark == null || watermark.last == null ? 0 : watermark.last);
 
                                     if (empty_pool && istore instanceof IMAPStore) {
                                         getMainHandler().removeCallbacks(purge);
-                                        if (handling.size() == 0)
+                                        if (pending == 0)
                                             getMainHandler().postDelayed(purge, PURGE_DELAY);
                                     }
 
+                                    // Operation IDs are never reused
+                                    if (last <= queued)
+                                        return;
+                                    queued = last;
+
+                                    executorFeed.submit(new RunnableEx("operations#feed") {
+                                        @Override
+                                        public void delegate() {
+                                            // Get new operations
+                                            Map<Long, List<TupleOperationEx>> added = new LinkedHashMap<>();
+                                            for (TupleOperationEx op : db.operation().getOperations(account.id, delivered)) {
+                                                if (op.id > delivered)
+                                                    delivered = op.id;
+                                                if (!added.containsKey(op.folder))
+                                                    added.put(op.folder, new ArrayList<>());
+                                                added.get(op.folder).add(op);
+                                            }
+                                            queue(added);
+                                        }
+                                    });
+                                }
+
+                                private void queue(Map<Long, List<TupleOperationEx>> added) {
                                     for (Long fid : added.keySet()) {
                                         EntityFolder found = null;
                                         for (EntityFolder f : mapFolders.keySet())
@@ -2345,14 +2453,20 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
 
                                                                 try {
                                                                     try {
-                                                                        ifolder.open(Folder.READ_WRITE);
+                                                                        if (capQresync && ifolder instanceof IMAPFolder)
+                                                                            ((IMAPFolder) ifolder).open(Folder.READ_WRITE, ResyncData.QRESYNC);
+                                                                        else
+                                                                            ifolder.open(Folder.READ_WRITE);
                                                                         if (ifolder instanceof IMAPFolder) {
                                                                             folder.read_only = ((IMAPFolder) ifolder).getUIDNotSticky();
                                                                             db.folder().setFolderReadOnly(folder.id, folder.read_only);
                                                                         }
                                                                     } catch (ReadOnlyFolderException ex) {
                                                                         Log.w(folder.name + " read only");
-                                                                        ifolder.open(Folder.READ_ONLY);
+                                                                        if (capQresync && ifolder instanceof IMAPFolder)
+                                                                            ((IMAPFolder) ifolder).open(Folder.READ_ONLY, ResyncData.QRESYNC);
+                                                                        else
+                                                                            ifolder.open(Folder.READ_ONLY);
                                                                         folder.read_only = true;
                                                                         db.folder().setFolderReadOnly(folder.id, folder.read_only);
                                                                     }
@@ -2429,7 +2543,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                                     }
                                                                 }
                                                                 db.folder().setFolderState(folder.id, null);
-                                                            }
+                                                            } else if (im != null && ifolder instanceof IMAPFolder)
+                                                                watch(im, account, folder, (IMAPFolder) ifolder, state);
                                                         }
                                                     } catch (Throwable ex) {
                                                         if ("Not connected".equals(ex.getMessage()))
@@ -2487,7 +2602,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             }
 
                             // Sends store NOOP
-                            if (EmailService.SEPARATE_STORE_CONNECTION) {
+                            if (EmailService.SEPARATE_STORE_CONNECTION || notifying) {
                                 EntityLog.log(this, EntityLog.Type.Account, account,
                                         account.name + " checking store" +
                                                 " memory=" + Log.getFreeMemMb() +
@@ -2507,19 +2622,54 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             if (sync) {
                                 EntityLog.log(this, EntityLog.Type.Account, account,
                                         account.name + " checking folders");
+
+                                // Get the status of all folders to be polled in one round trip
+                                Map<String, Status> statuses = null;
+                                if (capListStatus) {
+                                    boolean due = false;
+                                    for (EntityFolder folder : mapFolders.keySet())
+                                        if (folder.selectable && folder.synchronize &&
+                                                (folder.poll || !capIdle) && folder.poll_count == 0) {
+                                            due = true;
+                                            break;
+                                        }
+                                    if (due)
+                                        try {
+                                            statuses = new HashMap<>();
+                                            for (Status status : ((IMAPStore) istore).listStatus(getStatusItems(iservice)))
+                                                statuses.put(status.mbox, status);
+                                            EntityLog.log(this, EntityLog.Type.Account, account,
+                                                    account.name + " LIST-STATUS folders=" + statuses.size());
+                                        } catch (MessagingException ex) {
+                                            if (ex instanceof StoreClosedException)
+                                                throw ex;
+                                            Log.w(account.name, ex);
+                                            statuses = null;
+                                        }
+                                }
+
                                 for (EntityFolder folder : mapFolders.keySet())
                                     if (folder.selectable && folder.synchronize)
                                         if (!folder.poll && capIdle) {
                                             // Sends folder NOOP
-                                            if (!mapFolders.get(folder).isOpen())
+                                            if (!notifying && !mapFolders.get(folder).isOpen())
                                                 throw new StoreClosedException(iservice.getStore(), "NOOP " + folder.name);
                                             if (keep_alive_poll)
                                                 EntityOperation.poll(this, folder.id);
                                         } else {
                                             if (folder.poll_count == 0) {
-                                                EntityLog.log(this, EntityLog.Type.Account, folder,
-                                                        account.name + "/" + folder.name + " queue sync poll");
-                                                EntityOperation.poll(this, folder.id);
+                                                Status status = (statuses == null ? null : statuses.get(folder.name));
+                                                Status last = (status == null ? mapStatus.remove(folder.id) : mapStatus.put(folder.id, status));
+                                                if (statuses == null ||
+                                                        isChanged(db.folder().getFolder(folder.id), status, last)) {
+                                                    EntityLog.log(this, EntityLog.Type.Account, folder,
+                                                            account.name + "/" + folder.name + " queue sync poll");
+                                                    EntityOperation.poll(this, folder.id);
+                                                } else
+                                                    EntityLog.log(this, EntityLog.Type.Account, folder,
+                                                            account.name + "/" + folder.name + " unchanged" +
+                                                                    " messages=" + status.total +
+                                                                    " uidnext=" + status.uidnext);
                                             }
                                             folder.poll_count = (folder.poll_count + 1) % folder.poll_factor;
                                             db.folder().setFolderPollCount(folder.id, folder.poll_count);
@@ -2532,6 +2682,14 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                     Core.onSynchronizeFolders(this,
                                             account, iservice.getStore(), state,
                                             true, false);
+
+                                // The folder NOOPs above ended IDLE
+                                if (im != null)
+                                    for (EntityFolder folder : mapFolders.keySet()) {
+                                        IMAPFolder ifolder = mapFolders.get(folder);
+                                        if (ifolder != null)
+                                            watch(im, account, folder, ifolder, state);
+                                    }
                             }
                         } catch (Throwable ex) {
                             if (tune) {
@@ -2924,6 +3082,69 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
         }
     }
 
+    private static IdleManager getIdleManager() throws IOException {
+        synchronized (ServiceSynchronize.class) {
+            // The session is used for debug output only
+            if (idleManager == null)
+                idleManager = new IdleManager(Session.getInstance(new Properties(), null), executorIdle);
+            return idleManager;
+        }
+    }
+
+    private static void stopIdleManager() {
+        synchronized (ServiceSynchronize.class) {
+            if (idleManager != null) {
+                idleManager.stop();
+                idleManager = null;
+            }
+        }
+    }
+
+    private void watch(IdleManager im, EntityAccount account, EntityFolder folder, IMAPFolder ifolder, Core.State state) {
+        // Any command on the folder ends IDLE, so watching needs to be resumed afterwards
+        if (!state.isRunning() || !state.isRecoverable())
+            return;
+
+        try {
+            Log.i(folder.name + " watch idle");
+            im.watch(ifolder);
+            state.activity();
+        } catch (Throwable ex) {
+            Log.e(folder.name, ex);
+            EntityLog.log(this, EntityLog.Type.Account, folder,
+                    account.name + "/" + folder.name + " watch " + Log.formatThrowable(ex, false));
+            if (!im.isRunning())
+                synchronized (ServiceSynchronize.class) {
+                    if (idleManager == im)
+                        idleManager = null;
+                }
+            state.error(new FolderClosedException(ifolder, "IDLE", new Exception(ex)));
+        }
+    }
+
+    private static String[] getStatusItems(EmailService iservice) throws MessagingException {
+        if (iservice.hasCapability("CONDSTORE"))
+            return new String[]{"MESSAGES", "UIDNEXT", "UNSEEN", "HIGHESTMODSEQ"};
+        else
+            return new String[]{"MESSAGES", "UIDNEXT", "UNSEEN"};
+    }
+
+    private static boolean isChanged(EntityFolder folder, Status status, Status last) {
+        if (folder == null || status == null)
+            return true;
+
+        // Compare with the state stored by the last synchronization
+        if (folder.total == null || folder.total != status.total)
+            return true;
+        if (status.highestmodseq >= 0 && folder.modseq != null)
+            return (folder.modseq != status.highestmodseq);
+
+        // Compare with the previous poll
+        return (last == null ||
+                last.uidnext != status.uidnext ||
+                last.unseen != status.unseen);
+    }
+
     private void fetch(EntityFolder folder, IMAPFolder ifolder, Message[] messages, boolean invalidate, boolean deleted, String reason) throws MessagingException {
         Log.i(folder.name + " " + messages.length + " messages " + reason);
 
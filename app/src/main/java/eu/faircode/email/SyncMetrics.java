@@ -0,0 +1,181 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2024 by Marcel Bokhorst (M66B)
+*/
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Per phase sync timings of recent folder synchronizations
+// Kept in memory only, lost on restart
+public class SyncMetrics {
+    static final String[] PHASES = new String[]{
+            "search", "flags", "uids", "headers", "parse", "rules", "db", "download", "total"};
+
+    private static final int MAX_SAMPLES = 250; // ring buffer size
+    private static final int BUCKETS = 20; // log2 ms, last bucket is >= 2^18 ms (~4.4 minutes)
+
+    private static int next = 0;
+    private static final Sample[] samples = new Sample[MAX_SAMPLES];
+    private static final Map<String, Totals> totals = new LinkedHashMap<>();
+
+    static synchronized void record(String account, String folder, long[] ms, long sent, long received) {
+        Sample sample = new Sample();
+        sample.time = new Date().getTime();
+        sample.account = account;
+        sample.folder = folder;
+        sample.ms = ms;
+        sample.sent = sent;
+        sample.received = received;
+
+        samples[next] = sample;
+        next = (next + 1) % MAX_SAMPLES;
+
+        getTotals(account).add(sample);
+        getTotals(account + "/" + folder).add(sample);
+    }
+
+    static synchronized void clear() {
+        next = 0;
+        for (int i = 0; i < MAX_SAMPLES; i++)
+            samples[i] = null;
+        totals.clear();
+    }
+
+    static synchronized String dump() {
+        StringBuilder sb = new StringBuilder();
+
+        for (String key : totals.keySet()) {
+            Totals t = totals.get(key);
+            sb.append(key)
+                    .append(" syncs=").append(t.count)
+                    .append(" tx=").append(Helper.humanReadableByteCount(t.sent))
+                    .append(" rx=").append(Helper.humanReadableByteCount(t.received))
+                    .append("\r\n");
+            for (int p = 0; p < PHASES.length; p++) {
+                Histogram h = t.phases[p];
+                if (h.count == 0)
+                    continue;
+                sb.append("  ").append(PHASES[p])
+                        .append(" n=").append(h.count)
+                        .append(" avg=").append(h.sum / h.count)
+                        .append(" p50=").append(h.percentile(0.50))
+                        .append(" p90=").append(h.percentile(0.90))
+                        .append(" p99=").append(h.percentile(0.99))
+                        .append(" max=").append(h.max)
+                        .append(" ms\r\n");
+            }
+        }
+
+        sb.append("\r\n");
+
+        DateFormat TF = new SimpleDateFormat("HH:mm:ss", Locale.ROOT);
+        for (int i = 0; i < MAX_SAMPLES; i++) {
+            // Most recent first
+            Sample sample = samples[(next - 1 - i + MAX_SAMPLES) % MAX_SAMPLES];
+            if (sample == null)
+                break;
+            sb.append(TF.format(sample.time))
+                    .append(' ').append(sample.account)
+                    .append('/').append(sample.folder);
+            for (int p = 0; p < PHASES.length; p++)
+                if (sample.ms[p] > 0)
+                    sb.append(' ').append(PHASES[p]).append('=').append(sample.ms[p]);
+            sb.append(" tx=").append(sample.sent)
+                    .append(" rx=").append(sample.received)
+                    .append("\r\n");
+        }
+
+        return sb.toString();
+    }
+
+    private static Totals getTotals(String key) {
+        Totals t = totals.get(key);
+        if (t == null) {
+            t = new Totals();
+            totals.put(key, t);
+        }
+        return t;
+    }
+
+    private static class Sample {
+        long time;
+        String account;
+        String folder;
+        long[] ms;
+        long sent;
+        long received;
+    }
+
+    private static class Totals {
+        int count;
+        long sent;
+        long received;
+        final Histogram[] phases = new Histogram[PHASES.length];
+
+        Totals() {
+            for (int p = 0; p < PHASES.length; p++)
+                phases[p] = new Histogram();
+        }
+
+        void add(Sample sample) {
+            count++;
+            sent += sample.sent;
+            received += sample.received;
+            for (int p = 0; p < PHASES.length; p++)
+                // Skipped phases would skew the percentiles
+                if (sample.ms[p] > 0 || p == PHASES.length - 1)
+                    phases[p].add(sample.ms[p]);
+        }
+    }
+
+    private static class Histogram {
+        int count;
+        long sum;
+        long max;
+        final int[] buckets = new int[BUCKETS];
+
+        void add(long ms) {
+            if (ms < 0)
+                ms = 0;
+            int b = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+            buckets[b]++;
+            count++;
+            sum += ms;
+            if (ms > max)
+                max = ms;
+        }
+
+        long percentile(double p) {
+            // Upper bound of the bucket containing the percentile
+            long target = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets[b];
+                if (seen >= target)
+                    return Math.min(max, b == 0 ? 0 : (1L << b) - 1);
+            }
+            return max;
+        }
+    }
+}
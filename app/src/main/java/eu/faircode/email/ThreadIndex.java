@@ -0,0 +1,178 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2024 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Thread resolution of a sync batch in memory
+// Thread infos are loaded for all Message-IDs of the batch at once
+// Thread merges are kept in a union-find structure and committed together
+public class ThreadIndex {
+    private final long account;
+    private final Set<String> loaded = new HashSet<>();
+    private final Set<Long> ids = new HashSet<>();
+    private final Map<String, List<TupleThreadInfo>> byMsgId = new HashMap<>();
+    private final Map<String, List<TupleThreadInfo>> byInReplyTo = new HashMap<>();
+    private final Map<String, String> parent = new HashMap<>();
+    private final Set<String> merged = new LinkedHashSet<>();
+
+    private static final int MAX_QUERY = 450; // SQLite max variables
+
+    ThreadIndex(long account) {
+        this.account = account;
+    }
+
+    void load(Context context, Collection<String> msgids) {
+        List<String> missing = new ArrayList<>();
+        for (String msgid : msgids)
+            if (!TextUtils.isEmpty(msgid) && loaded.add(msgid))
+                missing.add(msgid);
+        if (missing.size() == 0)
+            return;
+
+        DB db = DB.getInstance(context);
+        for (List<String> chunk : Helper.chunkList(missing, MAX_QUERY))
+            for (TupleThreadInfo info : db.message().getThreadInfo(account, chunk, null, null))
+                put(info);
+    }
+
+    List<TupleThreadInfo> get(Context context, List<String> msgids, Long from, Long to) {
+        load(context, msgids);
+
+        Set<Long> seen = new HashSet<>();
+        List<TupleThreadInfo> result = new ArrayList<>();
+        for (String msgid : msgids) {
+            collect(byMsgId.get(msgid), from, to, seen, result);
+            collect(byInReplyTo.get(msgid), from, to, seen, result);
+        }
+
+        return result;
+    }
+
+    void added(EntityMessage message) {
+        TupleThreadInfo info = new TupleThreadInfo();
+        info.id = message.id;
+        info.thread = message.thread;
+        info.msgid = message.msgid;
+        info.hash = message.hash;
+        info.inreplyto = message.inreplyto;
+        info.received = message.received;
+        put(info);
+    }
+
+    String find(String thread) {
+        String root = thread;
+        String next;
+        while ((next = parent.get(root)) != null)
+            root = next;
+
+        // Path compression
+        while (!thread.equals(root)) {
+            next = parent.get(thread);
+            parent.put(thread, root);
+            thread = next;
+        }
+
+        return root;
+    }
+
+    void merge(String from, String to) {
+        String a = find(from);
+        String b = find(to);
+        if (a.equals(b))
+            return;
+        parent.put(a, b);
+        merged.add(a);
+    }
+
+    void commit(Context context) {
+        if (merged.size() == 0)
+            return;
+
+        DB db = DB.getInstance(context);
+        try {
+            db.beginTransaction();
+
+            for (String thread : merged) {
+                String root = find(thread);
+                Log.w("Updating thread from " + thread + " to " + root);
+                db.message().updateMessageThread(account, thread, root, null);
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        merged.clear();
+    }
+
+    private void collect(List<TupleThreadInfo> infos, Long from, Long to, Set<Long> seen, List<TupleThreadInfo> result) {
+        if (infos == null)
+            return;
+
+        for (TupleThreadInfo info : infos) {
+            if (!seen.add(info.id))
+                continue;
+            if (info.received != null &&
+                    ((from != null && info.received <= from) ||
+                            (to != null && info.received >= to)))
+                continue;
+
+            // Merged threads are not committed yet
+            TupleThreadInfo copy = new TupleThreadInfo();
+            copy.id = info.id;
+            copy.thread = (info.thread == null ? null : find(info.thread));
+            copy.msgid = info.msgid;
+            copy.hash = info.hash;
+            copy.inreplyto = info.inreplyto;
+            copy.received = info.received;
+            result.add(copy);
+        }
+    }
+
+    private void put(TupleThreadInfo info) {
+        if (info.id != null && !ids.add(info.id))
+            return;
+        if (!TextUtils.isEmpty(info.msgid))
+            getList(byMsgId, info.msgid).add(info);
+        if (!TextUtils.isEmpty(info.inreplyto))
+            getList(byInReplyTo, info.inreplyto).add(info);
+    }
+
+    private static List<TupleThreadInfo> getList(Map<String, List<TupleThreadInfo>> map, String key) {
+        List<TupleThreadInfo> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        return list;
+    }
+}
@@ -19,6 +19,10 @@ package eu.faircode.email;
     Copyright 2018-2024 by Marcel Bokhorst (M66B)
 */
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
 public class TrafficStatsHelper {
     public static void connect(String host, int port, String prefix) {
         Log.persist("Connected " + prefix + " " + host + ":" + port);
@@ -27,4 +31,18 @@ public class TrafficStatsHelper {
     public static void report(String host, String prefix, long sent, long received) {
         Log.persist("Disconnected " + prefix + " " + host + " tx=" + sent + " rx=" + received);
     }
+
+    static long[] getTraffic(IMAPFolder ifolder) {
+        try {
+            return (long[]) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                @Override
+                public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                    return new long[]{protocol.getSent(), protocol.getReceived()};
+                }
+            });
+        } catch (Throwable ex) {
+            Log.w(ex);
+            return null;
+        }
+    }
 }
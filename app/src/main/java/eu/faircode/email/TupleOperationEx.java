@@ -22,8 +22,6 @@ package eu.faircode.email;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.json.JSONArray;
-
 import java.util.Objects;
 
 public class TupleOperationEx extends EntityOperation {
@@ -77,17 +75,12 @@ public class TupleOperationEx extends EntityOperation {
         else if (SEEN.equals(name) ||
                 ANSWERED.equals(name) ||
                 FLAG.equals(name) ||
+                STORE.equals(name) ||
                 KEYWORD.equals(name) ||
                 LABEL.equals(name))
             key.id = "flags:" + folder;
         else if (FETCH.equals(name))
-            try {
-                JSONArray jargs = new JSONArray(args);
-                long uid = jargs.getLong(0);
-                key.id = "uid:" + uid;
-            } catch (Throwable ex) {
-                Log.e(ex);
-            }
+            key.id = "uid:" + uid;
         else if (!MOVE.equals(name))
             key.id = "id:" + id;
 
@@ -22,10 +22,12 @@ package eu.faircode.email;
 import android.text.TextUtils;
 
 public class TupleThreadInfo {
+    public Long id;
     public String thread;
     public String msgid;
     public String hash;
     public String inreplyto;
+    public Long received;
 
     public boolean isSelf(String msgid) {
         return !TextUtils.isEmpty(this.msgid) && this.msgid.equals(msgid);
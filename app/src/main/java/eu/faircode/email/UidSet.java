@@ -0,0 +1,127 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2024 by Marcel Bokhorst (M66B)
+*/
+
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// Compact set of UIDs without boxing
+// Lookups and removals are O(log n), removals don't shift the backing array
+public class UidSet {
+    private final long[] uids; // sorted, unique
+    private final BitSet present;
+    private int size;
+
+    public UidSet(List<Long> list) {
+        this(Helper.toLongArray(list));
+    }
+
+    public UidSet(long[] array) {
+        long[] sorted = Arrays.copyOf(array, array.length);
+        Arrays.sort(sorted);
+
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++)
+            if (count == 0 || sorted[count - 1] != sorted[i])
+                sorted[count++] = sorted[i];
+
+        this.uids = (count == sorted.length ? sorted : Arrays.copyOf(sorted, count));
+        this.present = new BitSet(count);
+        this.present.set(0, count);
+        this.size = count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+    public boolean contains(long uid) {
+        int index = Arrays.binarySearch(uids, uid);
+        return (index >= 0 && present.get(index));
+    }
+
+    public boolean remove(long uid) {
+        int index = Arrays.binarySearch(uids, uid);
+        if (index < 0 || !present.get(index))
+            return false;
+        present.clear(index);
+        size--;
+        return true;
+    }
+
+    public int removeAll(long[] array) {
+        // Merge walk: O(n + m log m)
+        long[] sorted = Arrays.copyOf(array, array.length);
+        Arrays.sort(sorted);
+
+        int removed = 0;
+        int i = 0;
+        int j = 0;
+        while (i < uids.length && j < sorted.length)
+            if (uids[i] < sorted[j])
+                i++;
+            else if (uids[i] > sorted[j])
+                j++;
+            else {
+                if (present.get(i)) {
+                    present.clear(i);
+                    removed++;
+                }
+                i++;
+                j++;
+            }
+
+        size -= removed;
+        return removed;
+    }
+
+    public long[] toArray() {
+        long[] result = new long[size];
+        int count = 0;
+        for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1))
+            result[count++] = uids[i];
+        return result;
+    }
+
+    public List<Pair<Long, Long>> getRanges() {
+        List<Pair<Long, Long>> ranges = new ArrayList<>();
+        int i = present.nextSetBit(0);
+        while (i >= 0) {
+            long first = uids[i];
+            long last = first;
+            int next = present.nextSetBit(i + 1);
+            while (next >= 0 && uids[next] == last + 1) {
+                last = uids[next];
+                next = present.nextSetBit(next + 1);
+            }
+            ranges.add(new Pair<>(first, last));
+            i = next;
+        }
+        return ranges;
+    }
+}
@@ -38,6 +38,7 @@ import androidx.paging.DataSource;
 import androidx.paging.LivePagedListBuilder;
 import androidx.paging.PagedList;
 import androidx.preference.PreferenceManager;
+import androidx.room.InvalidationTracker;
 import androidx.room.paging.LimitOffsetDataSource;
 
 import java.util.ArrayList;
@@ -90,6 +91,7 @@ public class ViewModelMessages extends ViewModel {
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean legacy = prefs.getBoolean("legacy_queries", false);
+        boolean keyset = prefs.getBoolean("keyset_queries", false);
         boolean cache_lists = prefs.getBoolean("cache_lists", true);
 
         Args args = new Args(context,
@@ -118,9 +120,28 @@ public class ViewModelMessages extends ViewModel {
                         args.server ? REMOTE_PAGE_SIZE : SEARCH_PAGE_SIZE);
 
             DataSource.Factory<Integer, TupleMessageEx> pager;
-            LivePagedListBuilder<Integer, TupleMessageEx> builder = null;
+            LivePagedListBuilder<?, TupleMessageEx> builder = null;
             switch (viewType) {
                 case UNIFIED:
+                    if (!legacy && keyset && args.isKeyset() && !args.group_category) {
+                        PagedList.Config configKeyset = new PagedList.Config.Builder()
+                                .setEnablePlaceholders(false)
+                                .setPageSize(LOCAL_PAGE_SIZE)
+                                .setMaxSize(MAX_CACHED_ITEMS)
+                                .build();
+                        builder = new LivePagedListBuilder<>(
+                                new KeysetDataSourceMessages.Factory(context,
+                                        args.type, null, args.ascending,
+                                        args.filter_seen,
+                                        args.filter_unflagged,
+                                        args.filter_unknown,
+                                        args.filter_snoozed,
+                                        args.filter_deleted,
+                                        args.filter_language),
+                                configKeyset);
+                        break;
+                    }
+
                     PagedList.Config configUnified = new PagedList.Config.Builder()
                             .setPageSize(LOCAL_PAGE_SIZE)
                             .setMaxSize(MAX_CACHED_ITEMS)
@@ -139,6 +160,17 @@ public class ViewModelMessages extends ViewModel {
                                 args.filter_language,
                                 false,
                                 args.debug);
+                    else if (args.threading && !args.debug)
+                        pager = db.message().pagedUnifiedThreads(
+                                args.type,
+                                args.group_category,
+                                args.sort1, args.sort2, args.ascending,
+                                args.filter_seen,
+                                args.filter_unflagged,
+                                args.filter_unknown,
+                                args.filter_snoozed,
+                                args.filter_deleted,
+                                args.filter_language);
                     else
                         pager = db.message().pagedUnified(
                                 args.type,
@@ -157,6 +189,28 @@ public class ViewModelMessages extends ViewModel {
                     break;
 
                 case FOLDER:
+                    if (!legacy && keyset && args.isKeyset()) {
+                        PagedList.Config configKeyset = new PagedList.Config.Builder()
+                                .setEnablePlaceholders(false)
+                                .setInitialLoadSizeHint(LOCAL_PAGE_SIZE)
+                                .setPageSize(LOCAL_PAGE_SIZE)
+                                .setPrefetchDistance(REMOTE_PAGE_SIZE)
+                                .setMaxSize(MAX_CACHED_ITEMS)
+                                .build();
+                        builder = new LivePagedListBuilder<>(
+                                new KeysetDataSourceMessages.Factory(context,
+                                        null, args.folder, args.ascending,
+                                        args.filter_seen,
+                                        args.filter_unflagged,
+                                        args.filter_unknown,
+                                        args.filter_snoozed,
+                                        args.filter_deleted,
+                                        args.filter_language),
+                                configKeyset);
+                        builder.setBoundaryCallback(boundary);
+                        break;
+                    }
+
                     PagedList.Config configFolder = new PagedList.Config.Builder()
                             .setInitialLoadSizeHint(LOCAL_PAGE_SIZE)
                             .setPageSize(LOCAL_PAGE_SIZE)
@@ -175,6 +229,16 @@ public class ViewModelMessages extends ViewModel {
                                 args.filter_language,
                                 false,
                                 args.debug);
+                    else if (args.threading && !args.debug)
+                        pager = db.message().pagedFolderThreads(
+                                args.folder,
+                                args.sort1, args.sort2, args.ascending,
+                                args.filter_seen,
+                                args.filter_unflagged,
+                                args.filter_unknown,
+                                args.filter_snoozed,
+                                args.filter_deleted,
+                                args.filter_language);
                     else
                         pager = db.message().pagedFolder(
                                 args.folder, args.threading,
@@ -187,6 +251,9 @@ public class ViewModelMessages extends ViewModel {
                                 args.filter_language,
                                 false,
                                 args.debug);
+                    // Thread summaries are keyed by account, unthreaded lists show the folder only
+                    if (!legacy && (!args.threading || !args.debug))
+                        pager = getFolderScoped(context, args.folder, pager);
                     builder = new LivePagedListBuilder<>(pager, configFolder);
                     builder.setBoundaryCallback(boundary);
                     break;
@@ -318,6 +385,26 @@ public class ViewModelMessages extends ViewModel {
         return model;
     }
 
+    private static DataSource.Factory<Integer, TupleMessageEx> getFolderScoped(
+            Context context, long folder, DataSource.Factory<Integer, TupleMessageEx> factory) {
+        // Data sources are created on the fetch executor, so the scope is applied there
+        return new DataSource.Factory<Integer, TupleMessageEx>() {
+            @NonNull
+            @Override
+            public DataSource<Integer, TupleMessageEx> create() {
+                DB db = DB.getInstance(context);
+                EntityFolder f = db.folder().getFolder(folder);
+                Map<String, long[]> keys = DB.getFolderScope(folder, f == null ? null : f.account);
+                return InvalidationTracker.scoped(keys, new InvalidationTracker.Factory<DataSource<Integer, TupleMessageEx>>() {
+                    @Override
+                    public DataSource<Integer, TupleMessageEx> create() {
+                        return factory.create();
+                    }
+                });
+            }
+        };
+    }
+
     void retry(AdapterMessage.ViewType viewType) {
         Model model = models.get(viewType);
         if (model != null && model.boundary != null)
@@ -422,6 +509,13 @@ public class ViewModelMessages extends ViewModel {
                         if (plist == null)
                             return null;
 
+                        if (plist.getDataSource() instanceof KeysetDataSourceMessages) {
+                            KeysetDataSourceMessages ks = (KeysetDataSourceMessages) plist.getDataSource();
+                            Pair<Long, Long> result = ks.getPrevNext(id, CHUNK_SIZE);
+                            Log.i("Observe previous/next keyset=" + result);
+                            return result;
+                        }
+
                         LimitOffsetDataSource<TupleMessageEx> ds = (LimitOffsetDataSource<TupleMessageEx>) plist.getDataSource();
                         int count = ds.countItems();
 
@@ -520,6 +614,25 @@ public class ViewModelMessages extends ViewModel {
                 if (plist == null)
                     return ids;
 
+                if (plist.getDataSource() instanceof KeysetDataSourceMessages) {
+                    KeysetDataSourceMessages ks = (KeysetDataSourceMessages) plist.getDataSource();
+                    KeysetDataSourceMessages.Key key = null;
+                    List<TupleMessageEx> page;
+                    do {
+                        page = ks.loadPage(key, 100);
+                        for (TupleMessageEx message : page)
+                            if ((message.received >= from && message.received < to) &&
+                                    ((message.uid != null && !message.folderReadOnly) ||
+                                            message.accountProtocol != EntityAccount.TYPE_IMAP))
+                                ids.add(message.id);
+                        if (page.size() > 0)
+                            key = ks.getKey(page.get(page.size() - 1));
+                    } while (page.size() == 100 && isAlive());
+
+                    Log.i("Loaded messages #" + ids.size());
+                    return ids;
+                }
+
                 LimitOffsetDataSource<TupleMessageEx> ds = (LimitOffsetDataSource<TupleMessageEx>) plist.getDataSource();
                 int count = ds.countItems();
                 for (int i = 0; i < count && isAlive(); i += 100)
@@ -621,6 +734,12 @@ public class ViewModelMessages extends ViewModel {
             this.debug = prefs.getBoolean("debug", false);
         }
 
+        boolean isKeyset() {
+            // Keys are the time sort columns of the thread list
+            return (threading && !debug &&
+                    "time".equals(sort1) && TextUtils.isEmpty(sort2));
+        }
+
         @Override
         public boolean equals(@Nullable Object obj) {
             if (obj instanceof Args) {